@@ -0,0 +1,162 @@
+package com.squareup.spoon;
+
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Starts the JVMs of isolated device processes with the configured options. When a class data
+ * archive is configured, the first process started without one records the classes it loads into
+ * it on exit (AppCDS) and every later process maps the archive instead of loading those classes
+ * again, which removes most of the startup cost of ddmlib, Guava, GSON and the imaging classes.
+ * <p>
+ * A JVM silently ignores an archive recorded for another classpath or JVM version, so the archive
+ * is named after a hash of both (and of the options) next to the configured file. A new Spoon or
+ * JDK records a new archive instead of running without one from then on.
+ */
+final class ChildJvm {
+  private final List<String> options;
+  private final File archive;
+  private final boolean debug;
+  private Process dumper;
+  private File dumperArchive;
+
+  /**
+   * @param options Extra options, e.g. heap size or GC, given to every JVM.
+   * @param archive Class data archive to create and use, or {@code null} to not use one. The file
+   *     used is named after it, see {@link #archiveFor(String)}.
+   */
+  ChildJvm(List<String> options, File archive, boolean debug) {
+    this.options = ImmutableList.copyOf(options);
+    this.archive = archive;
+    this.debug = debug;
+  }
+
+  /** The command line which runs {@code mainClass} in a new JVM. */
+  List<String> command(String classpath, String mainClass, String... args) {
+    return command(classpath, mainClass, false, args);
+  }
+
+  private List<String> command(String classpath, String mainClass, boolean dump, String... args) {
+    List<String> command = new ArrayList<String>();
+    command.add("java");
+    command.add("-Djava.awt.headless=true");
+    command.addAll(options);
+    if (archive != null) {
+      File archive = archiveFor(classpath);
+      // JVMs without dynamic archives (before Java 13) start normally instead of failing.
+      command.add("-XX:+IgnoreUnrecognizedVMOptions");
+      if (dump) {
+        command.add("-XX:ArchiveClassesAtExit=" + dumpFile(archive).getAbsolutePath());
+      } else {
+        command.add("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+      }
+    }
+    command.add("-cp");
+    command.add(classpath);
+    command.add(mainClass);
+    for (String arg : args) {
+      command.add(arg);
+    }
+    return command;
+  }
+
+  /**
+   * Start {@code mainClass} in a new JVM. Pass the process to {@link #exited(Process)} once it
+   * finished.
+   */
+  Process start(String classpath, String mainClass, String... args) throws IOException {
+    checkNotNull(classpath);
+    File archive = this.archive != null ? archiveFor(classpath) : null;
+    boolean dump = false;
+    if (archive != null) {
+      synchronized (this) {
+        // Only one process records the archive, the others start without it meanwhile.
+        if (dumper == null && !archive.exists()) {
+          archive.getParentFile().mkdirs();
+          dump = true;
+        }
+      }
+    }
+    List<String> command = command(classpath, mainClass, dump, args);
+    logDebug(debug, "Starting %s", command);
+    Process process = new ProcessBuilder(command).start();
+    if (dump) {
+      synchronized (this) {
+        dumper = process;
+        dumperArchive = archive;
+      }
+    }
+    return process;
+  }
+
+  /**
+   * Publish the archive recorded by {@code process}, if it recorded one. Must be called for every
+   * started process, also when it failed or was destroyed.
+   */
+  void exited(Process process) {
+    File archive;
+    synchronized (this) {
+      if (process != dumper) {
+        return;
+      }
+      archive = dumperArchive;
+      dumper = null;
+      dumperArchive = null;
+    }
+    // Written to a temporary file first so no process ever maps a partially written archive.
+    File dumpFile = dumpFile(archive);
+    if (hasExited(process) && dumpFile.length() > 0 && dumpFile.renameTo(archive)) {
+      logInfo("Created class data archive %s for device processes.", archive);
+    } else {
+      logDebug(debug, "No class data archive was created at %s.", dumpFile);
+      dumpFile.delete();
+    }
+  }
+
+  private static boolean hasExited(Process process) {
+    try {
+      process.exitValue();
+      return true;
+    } catch (IllegalThreadStateException e) {
+      return false;
+    }
+  }
+
+  /**
+   * The archive for JVMs running {@code classpath}, named after the configured archive and a hash
+   * of the classpath, {@code java.version} and the options, e.g.
+   * {@code spoon-0123456789abcdef.jsa}.
+   */
+  File archiveFor(String classpath) {
+    String key = classpath + '\n' + System.getProperty("java.version") + '\n' + options;
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+    StringBuilder hash = new StringBuilder();
+    for (int i = 0; i < 8; i++) {
+      hash.append(String.format("%02x", digest[i] & 0xff));
+    }
+    String name = archive.getName();
+    int dot = name.lastIndexOf('.');
+    String base = dot > 0 ? name.substring(0, dot) : name;
+    String extension = dot > 0 ? name.substring(dot) : "";
+    return new File(archive.getAbsoluteFile().getParentFile(), base + "-" + hash + extension);
+  }
+
+  private static File dumpFile(File archive) {
+    return new File(archive.getAbsolutePath() + ".tmp");
+  }
+}
@@ -0,0 +1,115 @@
+package com.squareup.spoon;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.squareup.spoon.FramedChannel.Frame;
+import static com.squareup.spoon.FramedChannel.Type;
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonUtils.GSON;
+
+/**
+ * Reads what a device process started by {@link SpoonDeviceRunner#runInNewProcess()} writes to
+ * its standard out: {@link Type#OUTPUT} log lines, {@link Type#EVENT} progress events as each
+ * test starts and ends, and finally the {@link Type#RESULT} of the device. The tests which ended
+ * are tracked so that a partial result survives a process which dies before it finishes.
+ */
+final class DeviceProcessStream {
+  private final String serial;
+  private final boolean eventsToStdout;
+  private final boolean debug;
+  private final Map<DeviceTest, DeviceTestResult.Builder> running =
+      new LinkedHashMap<DeviceTest, DeviceTestResult.Builder>();
+  private final Map<DeviceTest, String> traces = new LinkedHashMap<DeviceTest, String>();
+  private final DeviceResult.Builder ended = new DeviceResult.Builder();
+  private boolean started;
+  private DeviceResult result;
+
+  /** @param eventsToStdout Whether the events of the process are printed to standard out. */
+  DeviceProcessStream(String serial, boolean eventsToStdout, boolean debug) {
+    this.serial = serial;
+    this.eventsToStdout = eventsToStdout;
+    this.debug = debug;
+  }
+
+  /** Read frames until the process closes its standard out. */
+  void read(InputStream stdout) throws IOException {
+    FramedChannel channel = new FramedChannel(stdout, null);
+    Frame frame;
+    while ((frame = channel.receive()) != null) {
+      switch (frame.type) {
+        case OUTPUT:
+          logDebug(debug, "[%s] STDOUT %s", serial, frame.payload);
+          break;
+        case EVENT:
+          if (eventsToStdout) {
+            System.out.println(frame.payload);
+          }
+          onEvent(new JsonParser().parse(frame.payload).getAsJsonObject());
+          break;
+        case RESULT:
+          result = GSON.fromJson(frame.payload, DeviceResult.class);
+          break;
+        default:
+          throw new IOException("Unexpected frame from device process: " + frame);
+      }
+    }
+  }
+
+  private void onEvent(JsonObject event) {
+    DeviceTest test = new DeviceTest(event.get("className").getAsString(),
+        event.get("methodName").getAsString());
+    String type = event.get("event").getAsString();
+    if ("testStarted".equals(type)) {
+      if (!started) {
+        ended.startTests();
+        started = true;
+      }
+      running.put(test, new DeviceTestResult.Builder().startTest());
+    } else if ("testFailed".equals(type)) {
+      JsonElement trace = event.get("trace");
+      traces.put(test, trace != null ? trace.getAsString() : "");
+    } else if ("testEnded".equals(type)) {
+      DeviceTestResult.Builder builder = running.remove(test);
+      if (builder == null) {
+        return;
+      }
+      String trace = traces.remove(test);
+      DeviceTestResult.Status status =
+          DeviceTestResult.Status.valueOf(event.get("status").getAsString());
+      if (status == DeviceTestResult.Status.FAIL) {
+        builder.markTestAsFailed(trace != null ? trace : "");
+      } else if (status == DeviceTestResult.Status.ERROR) {
+        builder.markTestAsError(trace != null ? trace : "");
+      }
+      ended.addTestResultBuilder(test, builder.endTest());
+    }
+  }
+
+  /** The result sent by the process, or {@code null} if it never sent one. */
+  DeviceResult getResult() {
+    return result;
+  }
+
+  /**
+   * A result holding every test which ended before the process stopped, and {@code failure}.
+   * A test which was still running is reported as an error.
+   */
+  DeviceResult getPartialResult(String failure) {
+    for (Map.Entry<DeviceTest, DeviceTestResult.Builder> entry : running.entrySet()) {
+      ended.addTestResultBuilder(entry.getKey(),
+          entry.getValue().markTestAsError(failure).endTest());
+    }
+    running.clear();
+    if (started) {
+      ended.endTests();
+      started = false;
+    }
+    return ended.addException(failure).build();
+  }
+}
@@ -84,6 +84,15 @@ public final class DeviceResult {
 
   /* Aggregate two devices results into one, assuming no DeviceTest has been run twice */
   public DeviceResult aggregate (DeviceResult dres){
+      return aggregate(dres, false);
+  }
+
+  /** Fold the results of re-running failed tests within the same run into these results. */
+  public DeviceResult retry(DeviceResult retries) {
+      return aggregate(retries, true);
+  }
+
+  private DeviceResult aggregate(DeviceResult dres, boolean retry) {
       if(this.installFailed || dres.installFailed)
           throw new RuntimeException("The two results are incomparable, at least one fails to install");
         //this.installMessage = installMessage &&
@@ -103,13 +112,15 @@ public final class DeviceResult {
     		  newResults.put(dt, dres.testResults.get(dt));
       }
       
+      newResults.putAll(this.testResults);
+
       it = commontest.iterator();
       while(it.hasNext()) {
     	  DeviceTest dt = it.next();
-    	  this.testResults.get(dt).merge(dres.testResults.get(dt));
+    	  DeviceTestResult previous = this.testResults.get(dt);
+    	  DeviceTestResult next = dres.testResults.get(dt);
+    	  newResults.put(dt, retry ? previous.retry(next) : previous.merge(next));
       }
-      
-      newResults.putAll(this.testResults);
      
       newResults = unmodifiableMap(newResults);
 
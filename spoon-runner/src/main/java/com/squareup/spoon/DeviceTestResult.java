@@ -1,15 +1,31 @@
 package com.squareup.spoon;
 
 import com.android.ddmlib.logcat.LogCatMessage;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.squareup.spoon.misc.StackTrace;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import static com.squareup.spoon.SpoonLogger.logError;
 import static com.squareup.spoon.SpoonLogger.logInfo;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -23,50 +39,111 @@ public final class DeviceTestResult {
     PASS, FAIL, ERROR
   }
 
-  private List<Status> status;
-  private List<StackTrace> exception;
-  private long duration;
+  private static final Status[] STATUSES = Status.values();
+  /** Run ids repeat across every test of a run, so all results share one copy of each. */
+  private static final Interner<String> RUN_IDS = Interners.newWeakInterner();
+
+  // One element per attempt, oldest first.
+  private byte[] attemptStatus;
+  private long[] attemptDuration;
+  private String[] attemptRunId;
+  private StackTrace[] attemptTrace;
   private List<File> screenshots;
   private File animatedGif;
   private List<LogCatMessage> log;
-  private List<String> runIds;
+  /** Where the log is once archived, in which case {@link #log} is empty. */
+  private LogArchive.Entry archivedLog;
+  private int droppedLogLines;
+  /** Whether the attempts after the first retried a failure within one run. */
+  private boolean retried;
 
-  private DeviceTestResult(List<Status> status, List<StackTrace> exception, long duration,
-      List<File> screenshots, File animatedGif, List<LogCatMessage> log, List<String> runIds) {
-    this.status = status;
-    this.exception = exception;
-    this.duration = duration;
+  private DeviceTestResult(byte[] attemptStatus, long[] attemptDuration, String[] attemptRunId,
+      StackTrace[] attemptTrace, List<File> screenshots, File animatedGif,
+      List<LogCatMessage> log, int droppedLogLines) {
+    this.attemptStatus = attemptStatus;
+    this.attemptDuration = attemptDuration;
+    this.attemptRunId = attemptRunId;
+    this.attemptTrace = attemptTrace;
     this.screenshots = unmodifiableList(new ArrayList<File>(screenshots));
     this.animatedGif = animatedGif;
     this.log = log;
-    this.runIds = runIds;
+    this.droppedLogLines = droppedLogLines;
   }
 
-  /** Execution status. */
+  /**
+   * Execution status. A test which was retried within its run is decided by its final attempt;
+   * otherwise, e.g. when results of separate runs were aggregated, any failure fails it.
+   */
   public Status getOverallStatus() {
-    if(status.contains(Status.FAIL))
+    if (retried) {
+      return getFinalStatus();
+    }
+    if (hasAttempt(Status.FAIL)) {
       return Status.FAIL;
-    else if (status.contains(Status.ERROR))
+    } else if (hasAttempt(Status.ERROR)) {
       return Status.ERROR;
-    else
-      return status.get(0);
+    }
+    return STATUSES[attemptStatus[0]];
   }
-  
-  /** Execution status. */
+
+  private boolean hasAttempt(Status status) {
+    for (byte ordinal : attemptStatus) {
+      if (ordinal == status.ordinal()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Status of the most recent attempt. */
+  public Status getFinalStatus() {
+    return STATUSES[attemptStatus[attemptStatus.length - 1]];
+  }
+
+  /** Execution status of each attempt. */
   public List<Status> getStatus() {
-    return status;
+    return new AbstractList<Status>() {
+      @Override public Status get(int index) {
+        return STATUSES[attemptStatus[index]];
+      }
+
+      @Override public int size() {
+        return attemptStatus.length;
+      }
+    };
   }
 
-  /** Exception thrown during execution. */
+  /** Exception thrown during each attempt, {@code null} for attempts which passed. */
   public List<StackTrace> getException() {
-    return exception;
+    return unmodifiableList(Arrays.asList(attemptTrace));
   }
 
-  /** Length of test execution, in seconds. */
+  /**
+   * Length of test execution over all attempts, in seconds, or -1 if no attempt was timed.
+   */
   public long getDuration() {
+    long duration = -1;
+    for (long attempt : attemptDuration) {
+      if (attempt != -1) {
+        duration = Math.max(duration, 0) + attempt;
+      }
+    }
     return duration;
   }
 
+  /** Length of each attempt, in seconds, -1 for attempts which were not timed. */
+  public List<Long> getAttemptDurations() {
+    return new AbstractList<Long>() {
+      @Override public Long get(int index) {
+        return attemptDuration[index];
+      }
+
+      @Override public int size() {
+        return attemptDuration.length;
+      }
+    };
+  }
+
   /** Screenshots taken during test. */
   public List<File> getScreenshots() {
     return screenshots;
@@ -77,65 +154,255 @@ public final class DeviceTestResult {
     return animatedGif;
   }
 
+  /**
+   * Log of the test, decompressed from its archive if it has been archived. The log is empty if
+   * its archive cannot be read, e.g. when the report was moved without it.
+   */
   public List<LogCatMessage> getLog() {
-    return log;
+    if (archivedLog == null) {
+      return log;
+    }
+    try {
+      return LogArchive.read(archivedLog);
+    } catch (IOException e) {
+      logError("Unable to read log from %s: %s", archivedLog.getPath(), e.getMessage());
+      return new ArrayList<LogCatMessage>();
+    }
   }
-  
-  public List<String> getRunIds() {
-    return runIds;
+
+  /** Number of lines dropped from the log to stay within the log limits. */
+  public int getDroppedLogLines() {
+    return droppedLogLines;
+  }
+
+  /** Where the log is in its archive, or {@code null} if it is held in memory. */
+  public LogArchive.Entry getArchivedLog() {
+    return archivedLog;
+  }
+
+  /**
+   * Move the log into {@code archive}, unless it is already there. Logs archived elsewhere are
+   * copied, so that the archive holds every log referring to it.
+   */
+  public void archiveLog(LogArchive archive) throws IOException {
+    if (archivedLog != null && archive.getFile().equals(archivedLog.getFile())) {
+      return;
+    }
+    archiveLog(archive, getLog());
+  }
+
+  /** Like {@link #archiveLog(LogArchive)}, with {@code log} already read by {@link #getLog()}. */
+  public void archiveLog(LogArchive archive, List<LogCatMessage> log) throws IOException {
+    if (archivedLog != null && archive.getFile().equals(archivedLog.getFile())) {
+      return;
+    }
+    if (log.isEmpty()) {
+      return;
+    }
+    archivedLog = archive.append(log);
+    this.log = new ArrayList<LogCatMessage>();
   }
   
-  public void merge(DeviceTestResult other) {
-    this.exception.addAll(other.exception);
-    this.duration += other.duration;
+  /**
+   * Hold {@code log}, as read by {@link #getLog()}, in memory again instead of in its archive, for
+   * reports written where the archive is not.
+   */
+  public void inlineLog(List<LogCatMessage> log) {
+    if (archivedLog != null) {
+      this.log = log;
+      archivedLog = null;
+    }
+  }
 
-    try {
-      LogCatMessage last = this.log.get(this.log.size()-1);
-      String lastId = this.runIds.get(this.runIds.size()-1);
-      java.lang.reflect.Field m = LogCatMessage.class.getDeclaredField("mMessage");
-      m.setAccessible(true);
-      m.set(last, last.getMessage() + " --- end of id " + lastId);
+  /** Resolve the archived log against {@code directory}, the report it was read from. */
+  public void resolveArchivedLog(File directory) {
+    if (archivedLog != null) {
+      archivedLog = archivedLog.under(directory);
     }
-    catch (Throwable e) {
+  }
+
+  /** Id of the run of each attempt. */
+  public List<String> getRunIds() {
+    return unmodifiableList(Arrays.asList(attemptRunId));
+  }
+
+  /** Whether the attempts after the first were retries of a failure within the same run. */
+  public boolean isRetried() {
+    return retried;
+  }
+
+  /**
+   * The attempts of {@code this} followed by those of {@code other}. The last line of the log of
+   * {@code this} is marked with the run it ended. Neither result is changed.
+   */
+  public DeviceTestResult merge(DeviceTestResult other) {
+    return merge(other, false);
+  }
+
+  /** Like {@link #merge}, for {@code other} retrying this test within the same run. */
+  public DeviceTestResult retry(DeviceTestResult other) {
+    return merge(other, true);
+  }
+
+  private DeviceTestResult merge(DeviceTestResult other, boolean retried) {
+    List<LogCatMessage> log = new ArrayList<LogCatMessage>(getLog());
+    if (!log.isEmpty()) {
+      int last = log.size() - 1;
+      LogCatMessage message = log.get(last);
+      log.set(last, new LogCatMessage(message.getLogLevel(), message.getPid(), message.getTid(),
+          message.getAppName(), message.getTag(), message.getTime(),
+          message.getMessage() + " --- end of id " + attemptRunId[attemptRunId.length - 1]));
     }
-    
-    this.log.addAll(other.log);
-    this.status.addAll(other.status);
-    this.screenshots.addAll(other.screenshots);
-    this.runIds.addAll(other.runIds);
+    log.addAll(other.getLog());
+    List<File> screenshots = new ArrayList<File>(this.screenshots);
+    screenshots.addAll(other.screenshots);
+    // The animated GIF shows the latest attempt which has one.
+    File animatedGif = other.animatedGif != null ? other.animatedGif : this.animatedGif;
+    DeviceTestResult merged = new DeviceTestResult(concat(attemptStatus, other.attemptStatus),
+        concat(attemptDuration, other.attemptDuration), concat(attemptRunId, other.attemptRunId),
+        concat(attemptTrace, other.attemptTrace), screenshots, animatedGif, log,
+        droppedLogLines + other.droppedLogLines);
+    merged.retried = retried;
+    return merged;
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] both = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, both, first.length, second.length);
+    return both;
+  }
+
+  private static long[] concat(long[] first, long[] second) {
+    long[] both = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, both, first.length, second.length);
+    return both;
+  }
+
+  private static <T> T[] concat(T[] first, T[] second) {
+    T[] both = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, both, first.length, second.length);
+    return both;
   }
 
+  /**
+   * Keeps {@code result.json} in the shape it had before attempts were stored by column: lists of
+   * status names, exceptions and run ids, the total {@code duration} and, new, the duration of each
+   * attempt. Results written without attempt durations credit the total to the first attempt.
+   * Older results may hold more or fewer exceptions or run ids than statuses; those lists are cut
+   * or padded to one element per status.
+   */
+  static final TypeAdapterFactory JSON_ADAPTER = new TypeAdapterFactory() {
+    @SuppressWarnings("unchecked") // The type is checked against DeviceTestResult.
+    @Override public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+      if (type.getRawType() != DeviceTestResult.class) {
+        return null;
+      }
+      final TypeAdapter<DeviceTestResult> delegate =
+          gson.getDelegateAdapter(this, TypeToken.get(DeviceTestResult.class));
+      final TypeAdapter<JsonElement> elements = gson.getAdapter(JsonElement.class);
+      return (TypeAdapter<T>) new TypeAdapter<DeviceTestResult>() {
+        @Override public void write(JsonWriter out, DeviceTestResult result) throws IOException {
+          if (result == null) {
+            out.nullValue();
+            return;
+          }
+          JsonObject compact = delegate.toJsonTree(result).getAsJsonObject();
+          JsonObject json = new JsonObject();
+          JsonArray status = new JsonArray();
+          for (Status attempt : result.getStatus()) {
+            status.add(new JsonPrimitive(attempt.name()));
+          }
+          json.add("status", status);
+          compact.remove("attemptStatus");
+          json.add("exception", compact.remove("attemptTrace"));
+          json.addProperty("duration", result.getDuration());
+          json.add("attemptDurations", compact.remove("attemptDuration"));
+          JsonElement runIds = compact.remove("attemptRunId");
+          for (Map.Entry<String, JsonElement> entry : compact.entrySet()) {
+            json.add(entry.getKey(), entry.getValue());
+          }
+          json.add("runIds", runIds);
+          elements.write(out, json);
+        }
+
+        @Override public DeviceTestResult read(JsonReader in) throws IOException {
+          JsonElement element = elements.read(in);
+          if (element == null || element.isJsonNull()) {
+            return null;
+          }
+          JsonObject json = element.getAsJsonObject();
+          JsonArray names = json.remove("status").getAsJsonArray();
+          JsonArray status = new JsonArray();
+          for (JsonElement name : names) {
+            status.add(new JsonPrimitive(Status.valueOf(name.getAsString()).ordinal()));
+          }
+          json.add("attemptStatus", status);
+          int size = status.size();
+          json.add("attemptTrace", perAttempt(json.remove("exception"), size, JsonNull.INSTANCE));
+          // Missing ids repeat the last known one, like the attempts of a single run.
+          JsonArray runIds = new JsonArray();
+          JsonElement runId = new JsonPrimitive("test-id");
+          for (JsonElement id : perAttempt(json.remove("runIds"), size, JsonNull.INSTANCE)) {
+            runId = id.isJsonNull() ? runId : id;
+            runIds.add(runId);
+          }
+          json.add("attemptRunId", runIds);
+          JsonElement total = json.remove("duration");
+          JsonElement durations = json.remove("attemptDurations");
+          if (durations == null && total != null) {
+            durations = new JsonArray();
+            durations.getAsJsonArray().add(total);
+          }
+          json.add("attemptDuration", perAttempt(durations, size, new JsonPrimitive(0)));
+
+          DeviceTestResult result = delegate.fromJsonTree(json);
+          for (int i = 0; i < result.attemptRunId.length; i++) {
+            result.attemptRunId[i] = RUN_IDS.intern(result.attemptRunId[i]);
+          }
+          return result;
+        }
+      };
+    }
+
+    /**
+     * The first {@code size} elements of {@code list}, padded with {@code value} where it is
+     * shorter or missing.
+     */
+    private JsonArray perAttempt(JsonElement list, int size, JsonElement value) {
+      JsonArray elements = list != null && list.isJsonArray() ? list.getAsJsonArray() : null;
+      JsonArray filled = new JsonArray();
+      for (int i = 0; i < size; i++) {
+        filled.add(elements != null && i < elements.size() ? elements.get(i) : value);
+      }
+      return filled;
+    }
+  };
+
   public static class Builder {
     private final List<File> screenshots = new ArrayList<File>();
-    private List<Status> status = new ArrayList<Status>(Arrays.asList(Status.PASS));
-    private List<StackTrace> exception = new ArrayList<StackTrace>();
+    private Status status = Status.PASS;
+    private StackTrace exception;
     private long start;
     private long duration = -1;
     private File animatedGif;
     private List<LogCatMessage> log;
-    private List<String> runIds = new ArrayList<String>(Arrays.asList("test-id"));
-    
-    
+    private int droppedLogLines;
+    private String runId = "test-id";
 
     public Builder markTestAsFailed(String message) {
-      logInfo("->markTestAsFailed" +  "Current status: " + status.get(0) + "Exceptions:" + exception + "Run ids:" + runIds);
-      checkNotNull(message);
-      checkArgument(status.get(0) == Status.PASS, "Status was already marked as " + status);
-      status.set(0, Status.FAIL);
-      exception = new ArrayList<StackTrace>();
-      exception.add(StackTrace.from(message));
-      logInfo("<-markTestAsFailed" +  "Current status: " + status.get(0) + "Exceptions:" + exception + "Run ids:" + runIds);
-      return this;
+      return markTest(Status.FAIL, message);
     }
 
     public Builder markTestAsError(String message) {
-      logInfo("->markTestAsError" +  "Current status: " + status.get(0) + "Exceptions:" + exception + "Run ids:" + runIds);
+      return markTest(Status.ERROR, message);
+    }
+
+    private Builder markTest(Status status, String message) {
+      logInfo("Marking %s as %s in run %s", this.status, status, runId);
       checkNotNull(message);
-      checkArgument(status.get(0) == Status.PASS, "Status was already marked as " + status);
-      status.set(0, Status.ERROR);
-      exception = new ArrayList<StackTrace>();
-      exception.add(StackTrace.from(message));
-      logInfo("<-markTestAsError" +  "Current status: " + status.get(0) + "Exceptions:" + exception + "Run ids:" + runIds);
+      checkArgument(this.status == Status.PASS, "Status was already marked as " + this.status);
+      this.status = status;
+      exception = StackTrace.from(message);
       return this;
     }
 
@@ -146,10 +413,27 @@ public final class DeviceTestResult {
       return this;
     }
     
+    public Builder setDroppedLogLines(int droppedLogLines) {
+      checkArgument(droppedLogLines >= 0, "Dropped log lines cannot be negative.");
+      this.droppedLogLines = droppedLogLines;
+      return this;
+    }
+
+    public Builder setRunId(String runId) {
+      this.runId = checkNotNull(runId);
+      return this;
+    }
+
+    /**
+     * Builders hold a single attempt, which takes the last of {@code runIds}. An empty list keeps
+     * the current id.
+     *
+     * @deprecated Use {@link #setRunId(String)}.
+     */
+    @Deprecated
     public Builder setRunIds(List<String> runIds) {
-        checkNotNull(runIds);
-        this.runIds = runIds;
-        return this;
+      checkNotNull(runIds);
+      return runIds.isEmpty() ? this : setRunId(runIds.get(runIds.size() - 1));
     }
 
     public Builder startTest() {
@@ -180,15 +464,11 @@ public final class DeviceTestResult {
 
     public DeviceTestResult build() {
       if (log == null) {
-        log = Collections.emptyList();
+        log = new ArrayList<LogCatMessage>();
       }
-      
-      if(exception.isEmpty())
-        exception.add(null);
-      
-      return new DeviceTestResult(status, exception, duration, screenshots, animatedGif, log, runIds);
+      return new DeviceTestResult(new byte[] { (byte) status.ordinal() },
+          new long[] { duration }, new String[] { RUN_IDS.intern(runId) },
+          new StackTrace[] { exception }, screenshots, animatedGif, log, droppedLogLines);
     }
-    
-    
   }
 }
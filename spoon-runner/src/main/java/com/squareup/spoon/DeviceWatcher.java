@@ -0,0 +1,111 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Tracks which devices are online from the bridge's device change events so that callers can
+ * wait on them instead of repeatedly sampling {@link AndroidDebugBridge#getDevices()}.
+ */
+final class DeviceWatcher implements AndroidDebugBridge.IDeviceChangeListener {
+  /** Notified, outside of the watcher's lock, when a device comes online. */
+  interface Listener {
+    void deviceOnline(String serial);
+  }
+
+  /** Start tracking the devices of {@code adb}. Call {@link #stop()} when done. */
+  static DeviceWatcher start(AndroidDebugBridge adb) {
+    DeviceWatcher watcher = new DeviceWatcher(adb);
+    AndroidDebugBridge.addDeviceChangeListener(watcher);
+    // Listen first so that no device slips through between this snapshot and the first event.
+    for (IDevice device : adb.getDevices()) {
+      watcher.update(device);
+    }
+    return watcher;
+  }
+
+  private final AndroidDebugBridge adb;
+  private final Set<String> online = new LinkedHashSet<String>();
+  private volatile Listener listener;
+
+  private DeviceWatcher(AndroidDebugBridge adb) {
+    this.adb = adb;
+  }
+
+  void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  void stop() {
+    AndroidDebugBridge.removeDeviceChangeListener(this);
+  }
+
+  synchronized Set<String> getOnlineDevices() {
+    return new LinkedHashSet<String>(online);
+  }
+
+  /**
+   * Block until at least {@code expectedCount} devices are online or, when {@code expectedCount}
+   * is zero, return the devices online in the bridge's initial device list. Devices in that list
+   * which are not online, e.g. unauthorized ones, are left out rather than waited for. Gives up
+   * after {@code timeoutMs} and returns whatever is online at that point.
+   * <p>
+   * Waits are woken by device events. Bridges from {@link SpoonUtils#initAdb} already have their
+   * initial device list; for others an empty initial list arrives without an event, so the wait
+   * lasts until the timeout.
+   */
+  synchronized Set<String> awaitDevices(int expectedCount, long timeoutMs)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (!isSettled(expectedCount)) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        break;
+      }
+      wait(remaining);
+    }
+    return getOnlineDevices();
+  }
+
+  private boolean isSettled(int expectedCount) {
+    if (expectedCount > 0) {
+      return online.size() >= expectedCount;
+    }
+    return adb.isConnected() && adb.hasInitialDeviceList();
+  }
+
+  @Override public void deviceConnected(IDevice device) {
+    update(device);
+  }
+
+  @Override public synchronized void deviceDisconnected(IDevice device) {
+    String serial = device.getSerialNumber();
+    online.remove(serial);
+    notifyAll();
+  }
+
+  @Override public void deviceChanged(IDevice device, int changeMask) {
+    if ((changeMask & IDevice.CHANGE_STATE) != 0) {
+      update(device);
+    }
+  }
+
+  private void update(IDevice device) {
+    String serial = device.getSerialNumber();
+    boolean cameOnline = false;
+    synchronized (this) {
+      if (device.isOnline()) {
+        cameOnline = online.add(serial);
+      } else {
+        online.remove(serial);
+      }
+      notifyAll();
+    }
+    Listener listener = this.listener;
+    if (cameOnline && listener != null) {
+      listener.deviceOnline(serial);
+    }
+  }
+}
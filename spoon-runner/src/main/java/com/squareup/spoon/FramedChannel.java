@@ -0,0 +1,174 @@
+package com.squareup.spoon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Length-prefixed messages over a pair of streams. Each frame is a one byte {@link Type}, a four
+ * byte payload length and the UTF-8 encoded payload. Frames are flushed as soon as they are sent.
+ * A {@link Type#FILE} frame is followed by an eight byte length and the raw file contents.
+ */
+final class FramedChannel implements Closeable {
+  /** Upper bound on a single payload, to fail fast on a corrupt or foreign stream. */
+  private static final int MAX_PAYLOAD = 256 * 1024 * 1024;
+  /** Upper bound on a file received by {@link #receiveFile(File)}. */
+  static final long MAX_FILE = 4L * 1024 * 1024 * 1024;
+
+  enum Type {
+    /** A request from a client, e.g. the arguments of a run submitted to a daemon. */
+    REQUEST,
+    /** A line of console output. */
+    OUTPUT,
+    /** The exit code of a finished request. */
+    EXIT,
+    /** A worker announcing itself and its devices to a coordinator. */
+    HELLO,
+    /** The work a coordinator assigns to a worker. */
+    ASSIGN,
+    /** A file, named by the payload, whose contents follow the frame. */
+    FILE,
+    /** The result of a device. */
+    RESULT,
+    /** A per-test progress event, as written to the {@link SpoonEventLog}. */
+    EVENT
+  }
+
+  /** A single message read from the channel. */
+  static final class Frame {
+    final Type type;
+    final String payload;
+
+    Frame(Type type, String payload) {
+      this.type = type;
+      this.payload = payload;
+    }
+
+    @Override public String toString() {
+      return type + " " + payload;
+    }
+  }
+
+  private final DataInputStream in;
+  private final DataOutputStream out;
+
+  FramedChannel(InputStream in, OutputStream out) {
+    this.in = in != null ? new DataInputStream(new BufferedInputStream(in)) : null;
+    this.out = out != null ? new DataOutputStream(new BufferedOutputStream(out)) : null;
+  }
+
+  /** Write a frame. Safe to call from multiple threads. */
+  void send(Type type, String payload) throws IOException {
+    checkNotNull(type);
+    checkNotNull(payload);
+    synchronized (out) {
+      writeHeader(type, payload);
+      out.flush();
+    }
+  }
+
+  /** Write {@code file} as a {@link Type#FILE} frame named {@code name}. */
+  void sendFile(String name, File file) throws IOException {
+    checkNotNull(name);
+    FileInputStream contents = new FileInputStream(file);
+    try {
+      synchronized (out) {
+        writeHeader(Type.FILE, name);
+        out.writeLong(file.length());
+        long copied = IOUtils.copyLarge(contents, out);
+        if (copied != file.length()) {
+          throw new IOException("File changed while it was sent: " + file);
+        }
+        out.flush();
+      }
+    } finally {
+      IOUtils.closeQuietly(contents);
+    }
+  }
+
+  private void writeHeader(Type type, String payload) throws IOException {
+    byte[] bytes = payload.getBytes(UTF_8);
+    out.writeByte(type.ordinal());
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /** Read the next frame, blocking until one is available, or {@code null} at end of stream. */
+  Frame receive() throws IOException {
+    int type = in.read();
+    if (type == -1) {
+      return null;
+    }
+    if (type >= Type.values().length) {
+      throw new IOException("Unknown frame type " + type);
+    }
+    int length = in.readInt();
+    if (length < 0 || length > MAX_PAYLOAD) {
+      throw new IOException("Invalid frame length " + length);
+    }
+    byte[] bytes = new byte[length];
+    try {
+      in.readFully(bytes);
+    } catch (EOFException e) {
+      throw new IOException("Truncated frame", e);
+    }
+    return new Frame(Type.values()[type], new String(bytes, UTF_8));
+  }
+
+  /**
+   * Read the contents which follow a {@link Type#FILE} frame into {@code destination}. Must be
+   * called right after such a frame was received.
+   */
+  void receiveFile(File destination) throws IOException {
+    receiveFile(destination, MAX_FILE);
+  }
+
+  /** Like {@link #receiveFile(File)}, refusing files longer than {@code maxLength}. */
+  void receiveFile(File destination, long maxLength) throws IOException {
+    long remaining = in.readLong();
+    if (remaining < 0 || remaining > maxLength) {
+      throw new IOException("Invalid file length " + remaining + " for " + destination.getName());
+    }
+    destination.getParentFile().mkdirs();
+    FileOutputStream contents = new FileOutputStream(destination);
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      while (remaining > 0) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read == -1) {
+          throw new IOException("Truncated file " + destination);
+        }
+        contents.write(buffer, 0, read);
+        remaining -= read;
+      }
+    } finally {
+      contents.close();
+    }
+  }
+
+  @Override public void close() throws IOException {
+    try {
+      if (in != null) {
+        in.close();
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+}
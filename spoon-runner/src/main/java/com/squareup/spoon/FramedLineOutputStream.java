@@ -0,0 +1,67 @@
+package com.squareup.spoon;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.FramedChannel.Type;
+
+/**
+ * Sends every complete line written to it as a {@link Type#OUTPUT} frame, optionally still
+ * printing it locally. Once the channel fails, lines are dropped instead of failing the writer.
+ */
+final class FramedLineOutputStream extends OutputStream {
+  private final FramedChannel channel;
+  private final PrintStream local;
+  private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+  private boolean connected = true;
+
+  /** @param local Stream which also receives everything written, or {@code null}. */
+  FramedLineOutputStream(FramedChannel channel, PrintStream local) {
+    this.channel = checkNotNull(channel);
+    this.local = local;
+  }
+
+  @Override public synchronized void write(int b) throws IOException {
+    if (local != null) {
+      local.write(b);
+    }
+    if (b == '\n') {
+      sendLine();
+    } else {
+      line.write(b);
+    }
+  }
+
+  @Override public synchronized void write(byte[] b, int off, int len) throws IOException {
+    for (int i = off; i < off + len; i++) {
+      write(b[i]);
+    }
+  }
+
+  @Override public synchronized void flush() throws IOException {
+    if (local != null) {
+      local.flush();
+    }
+    if (line.size() > 0) {
+      sendLine();
+    }
+  }
+
+  private void sendLine() {
+    String text = new String(line.toByteArray(), UTF_8);
+    line.reset();
+    if (!connected) {
+      return;
+    }
+    try {
+      channel.send(Type.OUTPUT, text);
+    } catch (IOException e) {
+      // The reader went away. Keep executing the run so its report still gets written.
+      connected = false;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+import static com.squareup.spoon.SpoonLogger.logDebug;
+
+/** Detects whether a device already has the exact build of an APK installed. */
+final class InstalledApk {
+  private static final String PACKAGE_PREFIX = "package:";
+  private static final Pattern MD5 = Pattern.compile("[0-9a-f]{32}");
+  /** Hashing a large APK on a slow device can take a while without producing any output. */
+  private static final int CHECKSUM_TIMEOUT_MS = 60 * 1000;
+
+  /**
+   * {@code true} only if {@code packageName} is installed from a single APK whose contents are
+   * identical to {@code apk}. Any failure to determine this is treated as a mismatch.
+   */
+  static boolean isInstalled(IDevice device, String packageName, File apk, boolean debug) {
+    String serial = device.getSerialNumber();
+    try {
+      CollectingOutputReceiver pathOutput = new CollectingOutputReceiver();
+      device.executeShellCommand("pm path " + packageName, pathOutput);
+      String path = parsePackagePath(pathOutput.getOutput());
+      if (path == null) {
+        logDebug(debug, "[%s] %s is not installed.", serial, packageName);
+        return false;
+      }
+
+      CollectingOutputReceiver md5Output = new CollectingOutputReceiver();
+      device.executeShellCommand("md5sum " + path, md5Output, CHECKSUM_TIMEOUT_MS);
+      String installed = parseMd5(md5Output.getOutput());
+      String local = Files.hash(apk, Hashing.md5()).toString();
+      logDebug(debug, "[%s] %s installed=%s local=%s", serial, packageName, installed, local);
+      return local.equals(installed);
+    } catch (Exception e) {
+      logDebug(debug, "[%s] Unable to compare installed %s: %s", serial, packageName, e);
+      return false;
+    }
+  }
+
+  /**
+   * The path of the installed APK from the output of {@code pm path}, or {@code null} if the
+   * package is not installed or is split across several APKs.
+   */
+  static String parsePackagePath(String output) {
+    String path = null;
+    for (String line : output.split("\r?\n")) {
+      line = line.trim();
+      if (!line.startsWith(PACKAGE_PREFIX)) {
+        continue;
+      }
+      if (path != null) {
+        return null;
+      }
+      path = line.substring(PACKAGE_PREFIX.length());
+    }
+    return path == null || path.isEmpty() ? null : path;
+  }
+
+  /** The checksum from the output of {@code md5sum}, or {@code null} if it could not be run. */
+  static String parseMd5(String output) {
+    String trimmed = output.trim();
+    int end = trimmed.indexOf(' ');
+    String md5 = (end == -1 ? trimmed : trimmed.substring(0, end)).toLowerCase();
+    return MD5.matcher(md5).matches() ? md5 : null;
+  }
+
+  private InstalledApk() {
+    // No instances.
+  }
+}
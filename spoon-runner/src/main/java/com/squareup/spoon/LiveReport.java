@@ -0,0 +1,82 @@
+package com.squareup.spoon;
+
+import com.squareup.spoon.html.HtmlRenderer;
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.squareup.spoon.SpoonLogger.logError;
+
+/**
+ * Keeps the HTML report in the output directory current while devices are still executing.
+ * The index is refreshed periodically with the failures streamed so far and the full set of
+ * pages is re-rendered whenever a device finishes. All rendering happens on a single background
+ * thread so that renders never overlap.
+ */
+final class LiveReport {
+  static final int REFRESH_SECONDS = 5;
+
+  private final SpoonSummary.Builder summary;
+  private final File output;
+  private final int deviceCount;
+  private final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "spoon-live-report");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  private int renderedResults = -1;
+
+  LiveReport(SpoonSummary.Builder summary, File output, int deviceCount) {
+    this.summary = summary;
+    this.output = output;
+    this.deviceCount = deviceCount;
+  }
+
+  void start() {
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override public void run() {
+        render();
+      }
+    }, 0, REFRESH_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /** Render as soon as possible to pick up a device which just finished. */
+  void deviceFinished() {
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        render();
+      }
+    });
+  }
+
+  /** Stop rendering and wait for an in-flight render so it cannot clobber the final report. */
+  void stop() {
+    executor.shutdownNow();
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void render() {
+    try {
+      SpoonSummary snapshot = summary.snapshot();
+      int finished = snapshot.getResults().size();
+      String status = String.format("Running: %d of %d device(s) finished", finished, deviceCount);
+      // Logs are archived once, by the final report.
+      new HtmlRenderer(snapshot, SpoonUtils.GSON, output, true, false, false).renderProgress(
+          new File(output, SpoonEventLog.FILE_EVENTS), status, REFRESH_SECONDS,
+          finished != renderedResults);
+      renderedResults = finished;
+    } catch (RuntimeException e) {
+      // A stale report is better than a failed run.
+      logError("Unable to render live report: %s", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.google.gson.Gson;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.IOUtils;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Compressed logs of the tests of a device, written once into a single file. The log of each test
+ * is a gzip member of its own holding one JSON array per message ({@code [level, pid, tid, app,
+ * tag, time, message]}, the level being its letter), so that a test's log can be read by
+ * decompressing just its {@link Entry} range.
+ * <p>
+ * Entries refer to the archive by its path below the report directory, so that results stay
+ * valid when the report is moved. Entries read back from {@code result.json} are
+ * {@linkplain Entry#under resolved} against the directory they were read from.
+ */
+public final class LogArchive {
+  private static final Gson GSON = new Gson();
+
+  private final File file;
+  private final String path;
+
+  /** The archive at {@code path}, a {@code /} separated path below {@code directory}. */
+  public LogArchive(File directory, String path) {
+    this.path = checkNotNull(path);
+    this.file = new File(checkNotNull(directory), path).getAbsoluteFile();
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  /** Append the compressed {@code log} to the end of the archive. */
+  public synchronized Entry append(List<LogCatMessage> log) throws IOException {
+    file.getParentFile().mkdirs();
+    long offset = file.length();
+    Writer writer = null;
+    try {
+      writer = new OutputStreamWriter(
+          new GZIPOutputStream(new FileOutputStream(file, true)), UTF_8);
+      String[] fields = new String[7];
+      for (LogCatMessage message : log) {
+        fields[0] = String.valueOf(message.getLogLevel().getPriorityLetter());
+        fields[1] = message.getPid();
+        fields[2] = message.getTid();
+        fields[3] = message.getAppName();
+        fields[4] = message.getTag();
+        fields[5] = message.getTime();
+        fields[6] = message.getMessage();
+        GSON.toJson(fields, writer);
+        writer.write('\n');
+      }
+    } finally {
+      IOUtils.closeQuietly(writer);
+    }
+    return new Entry(path, file, offset, file.length() - offset, log.size());
+  }
+
+  /** The gzip member of {@code entry}, still compressed. */
+  public static byte[] readCompressed(Entry entry) throws IOException {
+    if (entry.file == null) {
+      throw new IOException("Archive " + entry.path + " was not resolved against its report.");
+    }
+    byte[] compressed = new byte[(int) entry.length];
+    RandomAccessFile in = new RandomAccessFile(entry.file, "r");
+    try {
+      in.seek(entry.offset);
+      in.readFully(compressed);
+    } finally {
+      in.close();
+    }
+    return compressed;
+  }
+
+  /** Decompress the log of {@code entry}. */
+  public static List<LogCatMessage> read(Entry entry) throws IOException {
+    byte[] compressed = readCompressed(entry);
+    List<LogCatMessage> log = new ArrayList<LogCatMessage>(entry.count);
+    BufferedReader reader = new BufferedReader(new InputStreamReader(
+        new GZIPInputStream(new ByteArrayInputStream(compressed)), UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = GSON.fromJson(line, String[].class);
+        log.add(new LogCatMessage(LogLevel.getByLetter(fields[0].charAt(0)), fields[1], fields[2],
+            fields[3], fields[4], fields[5], fields[6]));
+      }
+    } finally {
+      reader.close();
+    }
+    return log;
+  }
+
+  /** Where the log of a test is in an archive. */
+  public static final class Entry {
+    private final String path;
+    private final long offset;
+    private final long length;
+    private final int count;
+    /** The archive, once resolved. Not serialized since it depends on where the report is. */
+    private final transient File file;
+
+    Entry(String path, File file, long offset, long length, int count) {
+      this.path = path;
+      this.file = file;
+      this.offset = offset;
+      this.length = length;
+      this.count = count;
+    }
+
+    /** Path of the archive below the report directory. */
+    public String getPath() {
+      return path;
+    }
+
+    /** The archive file, or {@code null} if this entry was not resolved. */
+    public File getFile() {
+      return file;
+    }
+
+    /** This entry with its archive below {@code directory}. */
+    public Entry under(File directory) {
+      return new Entry(path, new File(directory, path).getAbsoluteFile(), offset, length, count);
+    }
+
+    /** Offset of the gzip member in the archive. */
+    public long getOffset() {
+      return offset;
+    }
+
+    /** Length of the gzip member, in bytes. */
+    public long getLength() {
+      return length;
+    }
+
+    /** Number of messages. */
+    public int getCount() {
+      return count;
+    }
+  }
+}
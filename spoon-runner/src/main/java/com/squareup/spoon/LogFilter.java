@@ -0,0 +1,190 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which logcat messages of a device are kept. A message passes when one of its
+ * {@code &}-separated tags is one of the filter tags, its level is at least the minimum level and
+ * it was logged by one of the filter PIDs; any of the three may be left unrestricted. Messages of
+ * the {@code TestRunner} tag always pass since they mark where tests start and finish.
+ * <p>
+ * The tags are looked up in a hash table by hashing each tag of a message in place, so no
+ * message is split or copied.
+ * <p>
+ * Part of the filter can also run on the device as a logcat filterspec, see
+ * {@link #toFilterspec()}, so that dropped messages are never transferred.
+ */
+final class LogFilter {
+  static final String TEST_RUNNER = "TestRunner";
+  private static final char SEPARATOR = '&';
+  private static final Pattern DEVICE_TAG = Pattern.compile("[A-Za-z0-9._-]+");
+
+  /** Filter tags, or {@code null} for all tags. */
+  private final List<String> tags;
+  /** Lowest level kept, or {@code null} for all levels. */
+  private final LogLevel minLevel;
+  /** PIDs kept, or empty for all PIDs. */
+  private final List<String> pids;
+  /** Whether the tags are also filtered on the device, see {@link #toFilterspec()}. */
+  private final boolean tagsOnDevice;
+
+  // Built from the tags on first use, since instances are also deserialized in device processes.
+  private transient volatile Table table;
+
+  LogFilter(Collection<String> tags, LogLevel minLevel, Collection<String> pids,
+      boolean tagsOnDevice) {
+    this.tags = tags != null ? new ArrayList<String>(tags) : null;
+    this.minLevel = minLevel;
+    this.pids = pids != null ? new ArrayList<String>(pids) : Collections.<String>emptyList();
+    this.tagsOnDevice = tagsOnDevice;
+  }
+
+  /** A filter for the {@code &}-separated tags of {@code filterLog}, which may be {@code null}. */
+  static LogFilter parse(String filterLog, LogLevel minLevel, Collection<String> pids) {
+    return parse(filterLog, minLevel, pids, false);
+  }
+
+  static LogFilter parse(String filterLog, LogLevel minLevel, Collection<String> pids,
+      boolean tagsOnDevice) {
+    List<String> tags = null;
+    if (filterLog != null) {
+      tags = new ArrayList<String>();
+      for (String tag : filterLog.split(String.valueOf(SEPARATOR))) {
+        if (tag.length() > 0) {
+          tags.add(tag);
+        }
+      }
+    }
+    return new LogFilter(tags, minLevel, pids, tagsOnDevice);
+  }
+
+  /** Filter tags, or {@code null} when all tags are kept. */
+  List<String> getTags() {
+    return tags;
+  }
+
+  /** Lowest level kept, or {@code null} when all levels are kept. */
+  LogLevel getMinLevel() {
+    return minLevel;
+  }
+
+  /**
+   * Logcat filterspec which drops on the device what this filter would drop on the host, or an
+   * empty string when everything has to be transferred. The minimum level is always applied. The
+   * tags only are when enabled, since logcat matches the whole tag and drops messages logged with
+   * several {@code &}-separated tags; they are also left to the host when one of them could not be
+   * passed to the device shell as is. PIDs are always filtered on the host.
+   */
+  String toFilterspec() {
+    char level = minLevel != null ? minLevel.getPriorityLetter() : 'V';
+    boolean deviceTags = tagsOnDevice && tags != null;
+    if (deviceTags) {
+      for (String tag : tags) {
+        deviceTags &= DEVICE_TAG.matcher(tag).matches();
+      }
+    }
+    if (!deviceTags && minLevel == null) {
+      return "";
+    }
+
+    StringBuilder filterspec = new StringBuilder(TEST_RUNNER).append(":V");
+    if (deviceTags) {
+      for (String tag : tags) {
+        if (!TEST_RUNNER.equals(tag)) {
+          filterspec.append(' ').append(tag).append(':').append(level);
+        }
+      }
+      filterspec.append(" '*:S'");
+    } else {
+      filterspec.append(" '*:").append(level).append('\'');
+    }
+    return filterspec.toString();
+  }
+
+  boolean accepts(LogCatMessage message) {
+    return accepts(message.getTag(), message.getLogLevel(), message.getPid());
+  }
+
+  boolean accepts(String tag, LogLevel level, String pid) {
+    boolean kept = (minLevel == null || level.getPriority() >= minLevel.getPriority())
+        && (pids.isEmpty() || pids.contains(pid));
+    if (kept && tags == null) {
+      return true;
+    }
+
+    int start = 0;
+    int hash = 0;
+    int length = tag.length();
+    for (int i = 0; i <= length; i++) {
+      char c = i < length ? tag.charAt(i) : SEPARATOR;
+      if (c != SEPARATOR) {
+        hash = 31 * hash + c;
+        continue;
+      }
+      if (i - start == TEST_RUNNER.length() && tag.startsWith(TEST_RUNNER, start)) {
+        return true;
+      }
+      if (kept && contains(tag, start, i, hash)) {
+        return true;
+      }
+      start = i + 1;
+      hash = 0;
+    }
+    return false;
+  }
+
+  /** Whether the part of {@code tag} from {@code start} to {@code end} is a filter tag. */
+  private boolean contains(String tag, int start, int end, int hash) {
+    Table table = this.table;
+    if (table == null) {
+      table = new Table(tags);
+      this.table = table;
+    }
+    return table.contains(tag, start, end, hash);
+  }
+
+  /** Open addressing hash table of the filter tags, probed with {@link String#hashCode()}. */
+  private static final class Table {
+    private final String[] tags;
+    private final int[] hashes;
+    private final int mask;
+
+    Table(List<String> filterTags) {
+      int size = Integer.highestOneBit(Math.max(4, filterTags.size()) * 4);
+      tags = new String[size];
+      hashes = new int[size];
+      mask = size - 1;
+      for (String tag : filterTags) {
+        int hash = tag.hashCode();
+        int slot = spread(hash) & mask;
+        while (tags[slot] != null && !tags[slot].equals(tag)) {
+          slot = (slot + 1) & mask;
+        }
+        tags[slot] = tag;
+        hashes[slot] = hash;
+      }
+    }
+
+    boolean contains(String tag, int start, int end, int hash) {
+      int length = end - start;
+      for (int slot = spread(hash) & mask; tags[slot] != null; slot = (slot + 1) & mask) {
+        String candidate = tags[slot];
+        if (hashes[slot] == hash && candidate.length() == length
+            && tag.regionMatches(start, candidate, 0, length)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static int spread(int hash) {
+      return hash ^ (hash >>> 16);
+    }
+  }
+}
@@ -0,0 +1,376 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Inverted index over the logcat messages of every test of a run. Each message is a line
+ * numbered across all tests, indexed by the lower case words of its message and by the qualified
+ * terms {@code tag:<tag>}, {@code level:<letter>} and {@code pid:<pid>}. A query is a list of
+ * such terms which must all match.
+ * <p>
+ * The index is written as {@value #FILENAME}, a script assigning it to {@code spoonLogIndex} so
+ * that the report can load it from disk. Postings are the deltas between ascending line numbers.
+ */
+public final class LogIndex {
+  public static final String FILENAME = "log-index.js";
+  private static final String PREFIX = "var spoonLogIndex = ";
+  private static final String SUFFIX = ";\n";
+  /** Longer words are usually IDs or encoded data nobody searches for. */
+  private static final int MAX_WORD_LENGTH = 64;
+
+  private final List<Test> tests;
+  private final Map<String, int[]> postings;
+  private final int[] starts;
+
+  private LogIndex(List<Test> tests, Map<String, int[]> postings) {
+    this.tests = tests;
+    this.postings = postings;
+    starts = new int[tests.size()];
+    int start = 0;
+    for (int i = 0; i < tests.size(); i++) {
+      starts[i] = start;
+      start += tests.get(i).lines;
+    }
+  }
+
+  /** Index the logs of every test in {@code summary}. */
+  public static LogIndex build(SpoonSummary summary) {
+    Builder builder = new Builder();
+    for (Map.Entry<String, DeviceResult> result : summary.getResults().entrySet()) {
+      for (Map.Entry<DeviceTest, DeviceTestResult> entry
+          : result.getValue().getTestResults().entrySet()) {
+        builder.add(result.getKey(), entry.getKey(), entry.getValue().getLog());
+      }
+    }
+    return builder.build();
+  }
+
+  /** Read the index written to the {@code output} directory. */
+  public static LogIndex read(File output) throws IOException {
+    File file = new File(output, FILENAME);
+    Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+    try {
+      return read(file, in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static LogIndex read(File file, Reader in) throws IOException {
+    char[] prefix = new char[PREFIX.length()];
+    int read = 0;
+    while (read < prefix.length) {
+      int count = in.read(prefix, read, prefix.length - read);
+      if (count < 0) {
+        break;
+      }
+      read += count;
+    }
+    if (!PREFIX.equals(new String(prefix, 0, read))) {
+      throw new IOException("Not a log index: " + file);
+    }
+    // The suffix after the object is never read.
+    JsonReader reader = new JsonReader(in);
+    List<Test> tests = new ArrayList<Test>();
+    Map<String, int[]> postings = new HashMap<String, int[]>();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if ("tests".equals(name)) {
+        reader.beginArray();
+        while (reader.hasNext()) {
+          reader.beginArray();
+          String serial = reader.nextString();
+          String className = reader.nextString();
+          String methodName = reader.nextString();
+          tests.add(new Test(serial, new DeviceTest(className, methodName), reader.nextInt()));
+          reader.endArray();
+        }
+        reader.endArray();
+      } else if ("terms".equals(name)) {
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String term = reader.nextName();
+          IntList lines = new IntList();
+          int line = 0;
+          reader.beginArray();
+          while (reader.hasNext()) {
+            line += reader.nextInt();
+            lines.add(line);
+          }
+          reader.endArray();
+          postings.put(term, lines.toArray());
+        }
+        reader.endObject();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    return new LogIndex(tests, postings);
+  }
+
+  /** Write the index to the {@code output} directory. */
+  public void write(File output) throws IOException {
+    Writer out = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(new File(output, FILENAME)), UTF_8));
+    try {
+      out.write(PREFIX);
+      write(new JsonWriter(out));
+      out.write(SUFFIX);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void write(JsonWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name("tests").beginArray();
+    for (Test test : tests) {
+      writer.beginArray()
+          .value(test.serial)
+          .value(test.test.getClassName())
+          .value(test.test.getMethodName())
+          .value(test.lines)
+          .endArray();
+    }
+    writer.endArray();
+    writer.name("terms").beginObject();
+    for (Map.Entry<String, int[]> entry : new TreeMap<String, int[]>(postings).entrySet()) {
+      writer.name(entry.getKey()).beginArray();
+      int previous = 0;
+      for (int line : entry.getValue()) {
+        writer.value(line - previous);
+        previous = line;
+      }
+      writer.endArray();
+    }
+    writer.endObject();
+    writer.endObject();
+    writer.flush();
+  }
+
+  /** Lines matching every term of {@code query}, in index order. */
+  public List<Hit> query(String query) {
+    List<String> terms = queryTerms(query);
+    if (terms.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<int[]> lists = new ArrayList<int[]>();
+    for (String term : terms) {
+      int[] lines = postings.get(term);
+      if (lines == null) {
+        return Collections.emptyList();
+      }
+      lists.add(lines);
+    }
+    // Intersect starting with the shortest list so that the candidates only shrink.
+    Collections.sort(lists, new Comparator<int[]>() {
+      @Override public int compare(int[] a, int[] b) {
+        return a.length - b.length;
+      }
+    });
+    int[] matches = lists.get(0);
+    for (int i = 1; i < lists.size() && matches.length > 0; i++) {
+      matches = intersect(matches, lists.get(i));
+    }
+
+    List<Hit> hits = new ArrayList<Hit>(matches.length);
+    for (int line : matches) {
+      int index = Arrays.binarySearch(starts, line);
+      if (index < 0) {
+        index = -index - 2;
+      }
+      // Tests without lines share their start with the next one.
+      while (index + 1 < starts.length && starts[index + 1] == line) {
+        index++;
+      }
+      Test test = tests.get(index);
+      hits.add(new Hit(test.serial, test.test, line - starts[index]));
+    }
+    return hits;
+  }
+
+  /** Elements of both ascending {@code small} and {@code large}, looked up by binary search. */
+  private static int[] intersect(int[] small, int[] large) {
+    IntList result = new IntList();
+    int from = 0;
+    for (int line : small) {
+      int index = Arrays.binarySearch(large, from, large.length, line);
+      if (index >= 0) {
+        result.add(line);
+        from = index + 1;
+      } else {
+        from = -index - 1;
+      }
+      if (from == large.length) {
+        break;
+      }
+    }
+    return result.toArray();
+  }
+
+  /** Index terms of {@code message}. */
+  static List<String> terms(LogCatMessage message) {
+    List<String> terms = new ArrayList<String>();
+    String tag = message.getTag();
+    if (tag != null) {
+      for (String part : tag.split("&")) {
+        if (part.length() > 0) {
+          terms.add("tag:" + part.toLowerCase(Locale.US));
+        }
+      }
+    }
+    terms.add("level:" + Character.toLowerCase(message.getLogLevel().getPriorityLetter()));
+    if (message.getPid() != null) {
+      terms.add("pid:" + message.getPid());
+    }
+    if (message.getMessage() != null) {
+      words(message.getMessage(), terms);
+    }
+    return terms;
+  }
+
+  /** Terms of a query: {@code tag:}, {@code level:} and {@code pid:} terms and message words. */
+  static List<String> queryTerms(String query) {
+    List<String> terms = new ArrayList<String>();
+    for (String part : query.trim().split("\\s+")) {
+      int colon = part.indexOf(':');
+      String field = colon > 0 ? part.substring(0, colon).toLowerCase(Locale.US) : "";
+      String value = part.substring(colon + 1);
+      if (value.length() > 0 && "tag".equals(field)) {
+        terms.add("tag:" + value.toLowerCase(Locale.US));
+      } else if (value.length() > 0 && "level".equals(field)) {
+        // Level names start with their letter.
+        terms.add("level:" + Character.toLowerCase(value.charAt(0)));
+      } else if (value.length() > 0 && "pid".equals(field)) {
+        terms.add("pid:" + value);
+      } else {
+        words(part, terms);
+      }
+    }
+    return terms;
+  }
+
+  /** Add the lower case words of {@code text}: runs of letters, digits and underscores. */
+  private static void words(String text, List<String> terms) {
+    int start = -1;
+    int length = text.length();
+    for (int i = 0; i <= length; i++) {
+      char c = i < length ? text.charAt(i) : ' ';
+      if (Character.isLetterOrDigit(c) || c == '_') {
+        if (start < 0) {
+          start = i;
+        }
+      } else if (start >= 0) {
+        if (i - start <= MAX_WORD_LENGTH) {
+          terms.add(text.substring(start, i).toLowerCase(Locale.US));
+        }
+        start = -1;
+      }
+    }
+  }
+
+  /** A matching line: the index of a message in the log of a test. */
+  public static final class Hit {
+    public final String serial;
+    public final DeviceTest test;
+    public final int line;
+
+    Hit(String serial, DeviceTest test, int line) {
+      this.serial = serial;
+      this.test = test;
+      this.line = line;
+    }
+  }
+
+  private static final class Test {
+    final String serial;
+    final DeviceTest test;
+    final int lines;
+
+    Test(String serial, DeviceTest test, int lines) {
+      this.serial = serial;
+      this.test = test;
+      this.lines = lines;
+    }
+  }
+
+  /** Indexes the logs of tests in the order they are added. */
+  public static final class Builder {
+    private final List<Test> tests = new ArrayList<Test>();
+    private final Map<String, IntList> postings = new HashMap<String, IntList>();
+    private int line;
+
+    public Builder add(String serial, DeviceTest test, List<LogCatMessage> log) {
+      tests.add(new Test(serial, test, log.size()));
+      for (LogCatMessage message : log) {
+        for (String term : terms(message)) {
+          IntList lines = postings.get(term);
+          if (lines == null) {
+            lines = new IntList();
+            postings.put(term, lines);
+          }
+          lines.addOnce(line);
+        }
+        line++;
+      }
+      return this;
+    }
+
+    public LogIndex build() {
+      Map<String, int[]> arrays = new HashMap<String, int[]>(postings.size() * 2);
+      for (Map.Entry<String, IntList> entry : postings.entrySet()) {
+        arrays.put(entry.getKey(), entry.getValue().toArray());
+      }
+      return new LogIndex(new ArrayList<Test>(tests), arrays);
+    }
+  }
+
+  /** Growable ascending list of line numbers. */
+  private static final class IntList {
+    private int[] values = new int[4];
+    private int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    /** Add {@code value} unless it was the last one added, for words repeated in a line. */
+    void addOnce(int value) {
+      if (size == 0 || values[size - 1] != value) {
+        add(value);
+      }
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
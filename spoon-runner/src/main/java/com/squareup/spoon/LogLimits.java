@@ -0,0 +1,67 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.logcat.LogCatMessage;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * How much of the log of each test is kept: its first {@code headLines} and last
+ * {@code tailLines} messages, each part also holding at most {@code maxBytes} of tags and
+ * messages. Once line limits are set, a part without one keeps no lines; with only a byte limit
+ * both parts are bounded by bytes alone. Zero everywhere keeps everything.
+ */
+final class LogLimits {
+  static final LogLimits NONE = new LogLimits(0, 0, 0);
+
+  private final int headLines;
+  private final int tailLines;
+  private final long maxBytes;
+
+  LogLimits(int headLines, int tailLines, long maxBytes) {
+    checkArgument(headLines >= 0, "Head lines cannot be negative.");
+    checkArgument(tailLines >= 0, "Tail lines cannot be negative.");
+    checkArgument(maxBytes >= 0, "Max bytes cannot be negative.");
+    this.headLines = headLines;
+    this.tailLines = tailLines;
+    this.maxBytes = maxBytes;
+  }
+
+  boolean isEnabled() {
+    return headLines > 0 || tailLines > 0 || maxBytes > 0;
+  }
+
+  int getHeadLines() {
+    return headLines > 0 || tailLines > 0 ? headLines : Integer.MAX_VALUE;
+  }
+
+  int getTailLines() {
+    return headLines > 0 || tailLines > 0 ? tailLines : Integer.MAX_VALUE;
+  }
+
+  long getMaxBytes() {
+    return maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+  }
+
+  /** UTF-8 size of the tag and message of {@code message}. */
+  static long bytes(LogCatMessage message) {
+    return utf8Length(message.getTag()) + utf8Length(message.getMessage());
+  }
+
+  private static long utf8Length(String text) {
+    if (text == null) {
+      return 0;
+    }
+    long length = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800 || Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+        length += 2; // A surrogate pair is four bytes.
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+}
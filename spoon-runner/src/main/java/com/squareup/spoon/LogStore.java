@@ -0,0 +1,211 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Append-only store of logcat messages in memory-mapped segment files, so that the messages of a
+ * long run live in the page cache instead of the heap. Messages are read back through
+ * {@link #range(long, int)} lists which decode them on demand.
+ * <p>
+ * Each record is a four byte length followed by the encoded message. Records never span
+ * segments; a zero length marks the unused end of a segment.
+ */
+final class LogStore {
+  static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+  /** Longest message kept, so that every record fits a segment. */
+  private static final int MAX_MESSAGE_BYTES = 64 * 1024;
+
+  private final File directory;
+  private final int segmentSize;
+  private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+  private MappedByteBuffer current;
+
+  LogStore(File directory) {
+    this(directory, SEGMENT_SIZE);
+  }
+
+  LogStore(File directory, int segmentSize) {
+    this.directory = checkNotNull(directory);
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Append {@code message}.
+   *
+   * @return the position of the record, for use with {@link #range(long, int)}.
+   */
+  synchronized long append(LogCatMessage message) throws IOException {
+    byte[] record = encode(message);
+    if (current == null || current.remaining() < 4 + record.length) {
+      if (current != null && current.remaining() >= 4) {
+        current.putInt(0);
+      }
+      current = map(segments.size());
+      segments.add(current);
+    }
+    long position = (long) (segments.size() - 1) * segmentSize + current.position();
+    current.putInt(record.length);
+    current.put(record);
+    return position;
+  }
+
+  /** A list of the {@code size} records starting at {@code position}, decoded on demand. */
+  List<LogCatMessage> range(long position, int size) {
+    return new Range(position, size);
+  }
+
+  private MappedByteBuffer map(int index) throws IOException {
+    directory.mkdirs();
+    RandomAccessFile file = new RandomAccessFile(new File(directory, "segment-" + index), "rw");
+    try {
+      // The mapping stays valid after the file is closed.
+      return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    } finally {
+      file.close();
+    }
+  }
+
+  /** An independent view of a whole segment, positioned at its start. */
+  private synchronized ByteBuffer segment(int index) {
+    ByteBuffer segment = segments.get(index).duplicate();
+    segment.clear();
+    return segment;
+  }
+
+  private byte[] encode(LogCatMessage message) {
+    byte[][] fields = {
+        bytes(message.getPid()), bytes(message.getTid()), bytes(message.getAppName()),
+        bytes(message.getTag()), bytes(message.getTime()), bytes(message.getMessage())
+    };
+    int limit = Math.min(MAX_MESSAGE_BYTES, segmentSize / 2);
+    if (fields[5] != null && fields[5].length > limit) {
+      byte[] truncated = new byte[limit];
+      System.arraycopy(fields[5], 0, truncated, 0, limit);
+      fields[5] = truncated;
+    }
+    int length = 2;
+    for (byte[] field : fields) {
+      length += 4 + (field != null ? field.length : 0);
+    }
+    ByteBuffer record = ByteBuffer.allocate(length);
+    record.putChar(message.getLogLevel().getPriorityLetter());
+    for (byte[] field : fields) {
+      if (field == null) {
+        record.putInt(-1);
+      } else {
+        record.putInt(field.length);
+        record.put(field);
+      }
+    }
+    return record.array();
+  }
+
+  private static byte[] bytes(String value) {
+    return value != null ? value.getBytes(UTF_8) : null;
+  }
+
+  private static LogCatMessage decode(ByteBuffer record) {
+    LogLevel level = LogLevel.getByLetter(record.getChar());
+    String pid = string(record);
+    String tid = string(record);
+    String appName = string(record);
+    String tag = string(record);
+    String time = string(record);
+    String message = string(record);
+    return new LogCatMessage(level, pid, tid, appName, tag, time, message);
+  }
+
+  private static String string(ByteBuffer record) {
+    int length = record.getInt();
+    if (length == -1) {
+      return null;
+    }
+    String value = new String(record.array(), record.arrayOffset() + record.position(), length,
+        UTF_8);
+    record.position(record.position() + length);
+    return value;
+  }
+
+  /** Sequentially decodes records starting at a position. */
+  private final class Reader implements Iterator<LogCatMessage> {
+    private int remaining;
+    private int index;
+    private ByteBuffer buffer;
+
+    Reader(long position, int count) {
+      this.remaining = count;
+      this.index = (int) (position / segmentSize);
+      if (count > 0) {
+        buffer = segment(index);
+        buffer.position((int) (position % segmentSize));
+      }
+    }
+
+    @Override public boolean hasNext() {
+      return remaining > 0;
+    }
+
+    @Override public LogCatMessage next() {
+      if (remaining == 0) {
+        throw new NoSuchElementException();
+      }
+      int length = buffer.remaining() >= 4 ? buffer.getInt() : 0;
+      if (length == 0) {
+        buffer = segment(++index);
+        length = buffer.getInt();
+      }
+      byte[] record = new byte[length];
+      buffer.get(record);
+      remaining--;
+      return decode(ByteBuffer.wrap(record));
+    }
+
+    @Override public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /** Read-only view of consecutive records. Meant to be iterated; {@link #get(int)} is linear. */
+  private final class Range extends AbstractList<LogCatMessage> {
+    private final long position;
+    private final int size;
+
+    Range(long position, int size) {
+      this.position = position;
+      this.size = size;
+    }
+
+    @Override public Iterator<LogCatMessage> iterator() {
+      return new Reader(position, size);
+    }
+
+    @Override public LogCatMessage get(int index) {
+      checkElementIndex(index, size);
+      Reader reader = new Reader(position, size);
+      for (int i = 0; i < index; i++) {
+        reader.next();
+      }
+      return reader.next();
+    }
+
+    @Override public int size() {
+      return size;
+    }
+  }
+}
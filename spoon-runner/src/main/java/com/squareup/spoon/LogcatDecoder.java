@@ -0,0 +1,199 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.squareup.spoon.SpoonLogger.logError;
+
+/**
+ * Decodes the binary output of {@code logcat -B} as it arrives. Each entry is a little endian
+ * header ({@code logger_entry}: payload length, header size, pid, tid, seconds, nanoseconds and,
+ * from version 2 on, fields this ignores) followed by a payload of a priority byte, the tag and the
+ * message, both NUL terminated. Every line of a message becomes a {@link LogCatMessage}, as with
+ * the text output of {@code logcat -v long}.
+ * <p>
+ * Before API 24 the shell of a device runs commands in a terminal which turns {@code \n} into
+ * {@code \r\n}; with {@code crlf} set this is undone before decoding.
+ * <p>
+ * Entries hold UTC timestamps, which are shown in the time zone of the device as text logcat
+ * shows them.
+ */
+final class LogcatDecoder {
+  /** Size of the version 1 header, whose header size field is always zero. */
+  private static final int V1_HEADER = 20;
+  private static final int MAX_HEADER = 256;
+  private static final LogLevel[] LEVELS = new LogLevel[8];
+  static {
+    Arrays.fill(LEVELS, LogLevel.VERBOSE);
+    for (LogLevel level : LogLevel.values()) {
+      LEVELS[level.getPriority()] = level;
+    }
+  }
+
+  private final IDevice device;
+  private final boolean crlf;
+  private final SimpleDateFormat timeFormat = new SimpleDateFormat("MM-dd HH:mm:ss");
+  private byte[] buffer = new byte[64 * 1024];
+  private int size;
+  private boolean pendingCr;
+  private boolean corrupt;
+  private long second = -1;
+  private String secondText;
+
+  /**
+   * @param device Used to look up app names by PID, or {@code null} to leave them empty.
+   * @param timeZone Time zone of the device, see {@link #timeZone(String)}.
+   */
+  LogcatDecoder(IDevice device, boolean crlf, TimeZone timeZone) {
+    this.device = device;
+    this.crlf = crlf;
+    timeFormat.setTimeZone(timeZone);
+  }
+
+  /**
+   * The time zone named by the {@code persist.sys.timezone} property of a device, which is GMT
+   * when the property is not set.
+   */
+  static TimeZone timeZone(String id) {
+    return TimeZone.getTimeZone(id == null || id.trim().isEmpty() ? "GMT" : id.trim());
+  }
+
+  /** Decode the entries completed by {@code data}, keeping any incomplete entry for later. */
+  List<LogCatMessage> decode(byte[] data, int offset, int length) {
+    List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+    if (corrupt) {
+      return messages;
+    }
+    append(data, offset, length);
+
+    int position = 0;
+    while (size - position >= 4) {
+      int payload = u16(position);
+      int header = u16(position + 2);
+      if (header == 0) {
+        header = V1_HEADER;
+      }
+      if (header < V1_HEADER || header > MAX_HEADER) {
+        // Entries cannot be found again once out of step, so give up on this stream.
+        logError("Unexpected logcat entry header size %d, dropping the rest of logcat.", header);
+        corrupt = true;
+        size = 0;
+        return messages;
+      }
+      if (size - position < header + payload) {
+        break;
+      }
+      decodeEntry(position, header, payload, messages);
+      position += header + payload;
+    }
+    System.arraycopy(buffer, position, buffer, 0, size - position);
+    size -= position;
+    return messages;
+  }
+
+  private void decodeEntry(int position, int header, int payload, List<LogCatMessage> messages) {
+    if (payload == 0) {
+      return;
+    }
+    int pid = s32(position + 4);
+    String tid = Integer.toString(s32(position + 8));
+    String time = time(s32(position + 12) & 0xffffffffL, s32(position + 16));
+    int start = position + header;
+    int end = start + payload;
+    int priority = buffer[start] & 0xff;
+    LogLevel level = priority < LEVELS.length ? LEVELS[priority] : LogLevel.ASSERT;
+    int tagEnd = indexOf((byte) 0, start + 1, end);
+    String tag = new String(buffer, start + 1, tagEnd - start - 1, UTF_8).trim();
+    String pidText = Integer.toString(pid);
+    String appName = "";
+    if (device != null) {
+      appName = device.getClientName(pid);
+    }
+
+    // One message per line, dropping the line breaks which usually end the message.
+    int messageStart = Math.min(tagEnd + 1, end);
+    int messageEnd = indexOf((byte) 0, messageStart, end);
+    while (messageEnd > messageStart && buffer[messageEnd - 1] == '\n') {
+      messageEnd--;
+    }
+    int line = messageStart;
+    do {
+      int lineEnd = indexOf((byte) '\n', line, messageEnd);
+      messages.add(new LogCatMessage(level, pidText, tid, appName, tag, time,
+          new String(buffer, line, lineEnd - line, UTF_8)));
+      line = lineEnd + 1;
+    } while (line <= messageEnd);
+  }
+
+  /** Format like {@code logcat -v long}, e.g. {@code 01-31 12:34:56.789}. */
+  private String time(long seconds, int nanos) {
+    if (seconds != second) {
+      second = seconds;
+      secondText = timeFormat.format(new Date(seconds * 1000));
+    }
+    int millis = nanos / 1000000;
+    StringBuilder time = new StringBuilder(secondText.length() + 4).append(secondText).append('.');
+    if (millis < 100) {
+      time.append('0');
+    }
+    if (millis < 10) {
+      time.append('0');
+    }
+    return time.append(millis).toString();
+  }
+
+  private void append(byte[] data, int offset, int length) {
+    // One more for a carriage return held back from the previous data.
+    if (size + length + 1 > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length + 1));
+    }
+    if (!crlf) {
+      System.arraycopy(data, offset, buffer, size, length);
+      size += length;
+      return;
+    }
+    for (int i = offset; i < offset + length; i++) {
+      byte b = data[i];
+      if (pendingCr) {
+        pendingCr = false;
+        if (b != '\n') {
+          buffer[size++] = '\r';
+        }
+      }
+      if (b == '\r') {
+        // Held back until the next byte shows whether the terminal added it.
+        pendingCr = true;
+      } else {
+        buffer[size++] = b;
+      }
+    }
+  }
+
+  private int indexOf(byte b, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (buffer[i] == b) {
+        return i;
+      }
+    }
+    return to;
+  }
+
+  private int u16(int position) {
+    return (buffer[position] & 0xff) | (buffer[position + 1] & 0xff) << 8;
+  }
+
+  private int s32(int position) {
+    return (buffer[position] & 0xff)
+        | (buffer[position + 1] & 0xff) << 8
+        | (buffer[position + 2] & 0xff) << 16
+        | (buffer[position + 3] & 0xff) << 24;
+  }
+}
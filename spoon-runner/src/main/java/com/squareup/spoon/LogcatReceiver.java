@@ -0,0 +1,117 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import com.android.ddmlib.MultiLineReceiver;
+import com.android.ddmlib.logcat.LogCatListener;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.android.ddmlib.logcat.LogCatMessageParser;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logError;
+
+/**
+ * Streams the logcat of a device to a listener until stopped. Unlike ddmlib's
+ * {@code LogCatReceiverTask} a filterspec can be passed to logcat, so that messages nobody wants
+ * are dropped on the device instead of being transferred. Logcat is either read as text and
+ * parsed like ddmlib does, or read in its binary format and decoded by {@link LogcatDecoder}.
+ */
+final class LogcatReceiver implements Runnable {
+  private static final String TEXT_COMMAND = "logcat -v long";
+  private static final String BINARY_COMMAND = "logcat -B";
+  /** First API level whose shell does not run commands in a terminal. */
+  private static final int RAW_SHELL_API_LEVEL = 24;
+  private static final String TIME_ZONE_PROPERTY = "persist.sys.timezone";
+
+  private final IDevice device;
+  private final String command;
+  private final boolean binary;
+  private final LogCatListener listener;
+  private final AtomicBoolean stopped = new AtomicBoolean();
+
+  /** @param filterspec Logcat filterspec, or an empty string for every message. */
+  LogcatReceiver(IDevice device, String filterspec, boolean binary, LogCatListener listener) {
+    this.device = checkNotNull(device);
+    String command = binary ? BINARY_COMMAND : TEXT_COMMAND;
+    this.command = filterspec.length() > 0 ? command + " " + filterspec : command;
+    this.binary = binary;
+    this.listener = checkNotNull(listener);
+  }
+
+  @Override public void run() {
+    try {
+      while (!device.isOnline()) {
+        if (stopped.get()) {
+          return;
+        }
+        Thread.sleep(1000);
+      }
+    } catch (InterruptedException e) {
+      return;
+    }
+
+    try {
+      device.executeShellCommand(command, binary ? binaryReceiver() : textReceiver(), 0);
+    } catch (Exception e) {
+      if (!stopped.get()) {
+        logError("Logcat of %s stopped: %s", device.getSerialNumber(), e.getMessage());
+      }
+    }
+  }
+
+  private IShellOutputReceiver textReceiver() {
+    final LogCatMessageParser parser = new LogCatMessageParser();
+    return new MultiLineReceiver() {
+      @Override public void processNewLines(String[] lines) {
+        if (!stopped.get()) {
+          deliver(parser.processLogLines(lines, device));
+        }
+      }
+
+      @Override public boolean isCancelled() {
+        return stopped.get();
+      }
+    };
+  }
+
+  private IShellOutputReceiver binaryReceiver() {
+    final LogcatDecoder decoder = new LogcatDecoder(device, apiLevel() < RAW_SHELL_API_LEVEL,
+        LogcatDecoder.timeZone(device.getProperty(TIME_ZONE_PROPERTY)));
+    return new IShellOutputReceiver() {
+      @Override public void addOutput(byte[] data, int offset, int length) {
+        if (!stopped.get()) {
+          deliver(decoder.decode(data, offset, length));
+        }
+      }
+
+      @Override public void flush() {
+      }
+
+      @Override public boolean isCancelled() {
+        return stopped.get();
+      }
+    };
+  }
+
+  private void deliver(List<LogCatMessage> messages) {
+    if (!messages.isEmpty()) {
+      listener.log(messages);
+    }
+  }
+
+  /** API level of the device, assuming a current one if it is not known. */
+  private int apiLevel() {
+    try {
+      return Integer.parseInt(device.getProperty(IDevice.PROP_BUILD_API_LEVEL));
+    } catch (NumberFormatException e) {
+      return Integer.MAX_VALUE;
+    }
+  }
+
+  /** Stop streaming. Messages still in flight are dropped. */
+  void stop() {
+    stopped.set(true);
+  }
+}
@@ -0,0 +1,191 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logError;
+
+/**
+ * Splits logcat into the logs of individual tests as messages arrive. The {@code TestRunner}
+ * messages {@code started: method(class)} and {@code finished: method(class)} open and close the
+ * log of a test; everything in between belongs to it. Messages are kept in a {@link LogStore} and
+ * the log of a test is available as soon as its finished message arrives.
+ * <p>
+ * When {@link LogLimits} are set only the head of a test's log goes to the store as it arrives.
+ * The tail is held in memory, dropping its oldest messages to stay within the limits, and is
+ * stored after a message counting the dropped lines once the test finishes.
+ */
+final class LogcatSegmenter {
+  private static final String TEST_RUNNER = "TestRunner";
+  private static final String STARTED = "started: ";
+  private static final String FINISHED = "finished: ";
+  /** Tag of the message which stands in for the dropped lines. */
+  static final String DROPPED_TAG = "Spoon";
+
+  private final LogStore store;
+  private final LogLimits limits;
+  private final Map<DeviceTest, List<LogCatMessage>> logs =
+      new HashMap<DeviceTest, List<LogCatMessage>>();
+  private final Map<DeviceTest, Integer> droppedLines = new HashMap<DeviceTest, Integer>();
+  private DeviceTest current;
+  private long start;
+  private int startIndex;
+  private int count;
+  private boolean storeFailed;
+
+  // Retention of the current test.
+  private int headLines;
+  private long headBytes;
+  private boolean headFull;
+  private final ArrayDeque<LogCatMessage> tail = new ArrayDeque<LogCatMessage>();
+  private long tailBytes;
+  private int dropped;
+
+  LogcatSegmenter(LogStore store) {
+    this(store, LogLimits.NONE);
+  }
+
+  LogcatSegmenter(LogStore store, LogLimits limits) {
+    this.store = checkNotNull(store);
+    this.limits = checkNotNull(limits);
+  }
+
+  /** Add the next message, closing the log of the current test if it finished. */
+  synchronized void add(LogCatMessage message) {
+    if (storeFailed) {
+      return;
+    }
+    DeviceTest started = null;
+    boolean finished = false;
+    if (TEST_RUNNER.equals(message.getTag())) {
+      if (current == null) {
+        started = parseTest(STARTED, message.getMessage());
+      } else {
+        finished = parseTest(FINISHED, message.getMessage()) != null;
+      }
+    }
+
+    if (current != null && !finished && limits.isEnabled() && !keepInHead(message)) {
+      keepInTail(message);
+      return;
+    }
+    if (finished) {
+      storeTail();
+    }
+    int index = count;
+    long position = append(message);
+    if (position < 0) {
+      return;
+    }
+    if (started != null) {
+      current = started;
+      start = position;
+      startIndex = index;
+    } else if (finished) {
+      logs.put(current, store.range(start, count - startIndex));
+      current = null;
+    }
+  }
+
+  /** Number of lines dropped from the logs of tests, for those which lost any. */
+  synchronized Map<DeviceTest, Integer> getDroppedLines() {
+    return new HashMap<DeviceTest, Integer>(droppedLines);
+  }
+
+  /**
+   * Logs of every test. A test which never finished gets everything logged after it started.
+   * Meant to be called once logcat has stopped.
+   */
+  synchronized Map<DeviceTest, List<LogCatMessage>> finish() {
+    if (current != null && !storeFailed) {
+      storeTail();
+    }
+    Map<DeviceTest, List<LogCatMessage>> all = new HashMap<DeviceTest, List<LogCatMessage>>(logs);
+    if (current != null) {
+      all.put(current, store.range(start, count - startIndex));
+    }
+    return all;
+  }
+
+  /** Count {@code message} against the head of the current test, if it still fits. */
+  private boolean keepInHead(LogCatMessage message) {
+    long bytes = LogLimits.bytes(message);
+    if (headFull || headLines >= limits.getHeadLines()
+        || headBytes + bytes > limits.getMaxBytes()) {
+      headFull = true;
+      return false;
+    }
+    headLines++;
+    headBytes += bytes;
+    return true;
+  }
+
+  private void keepInTail(LogCatMessage message) {
+    tail.addLast(message);
+    tailBytes += LogLimits.bytes(message);
+    while (!tail.isEmpty()
+        && (tail.size() > limits.getTailLines() || tailBytes > limits.getMaxBytes())) {
+      tailBytes -= LogLimits.bytes(tail.removeFirst());
+      dropped++;
+    }
+  }
+
+  /** Store the tail of the current test behind a message counting the lines dropped from it. */
+  private void storeTail() {
+    if (dropped > 0) {
+      droppedLines.put(current, dropped);
+      String time = tail.isEmpty() ? "" : tail.peekFirst().getTime();
+      append(new LogCatMessage(LogLevel.WARN, "", "", "", DROPPED_TAG, time,
+          dropped + " log lines dropped"));
+    }
+    for (LogCatMessage message : tail) {
+      append(message);
+    }
+    headLines = 0;
+    headBytes = 0;
+    headFull = false;
+    tail.clear();
+    tailBytes = 0;
+    dropped = 0;
+  }
+
+  /** Append {@code message} to the store, returning its position or -1 if the store failed. */
+  private long append(LogCatMessage message) {
+    if (storeFailed) {
+      return -1;
+    }
+    try {
+      long position = store.append(message);
+      count++;
+      return position;
+    } catch (IOException e) {
+      // Keep the run going without logs rather than failing it.
+      logError("Unable to store logcat, dropping the rest of it: %s", e.getMessage());
+      storeFailed = true;
+      return -1;
+    }
+  }
+
+  /**
+   * Parse {@code prefix + "method(class)"} into its test, or {@code null} if {@code message} has
+   * another form.
+   */
+  static DeviceTest parseTest(String prefix, String message) {
+    if (!message.startsWith(prefix) || !message.endsWith(")")) {
+      return null;
+    }
+    int open = message.indexOf('(', prefix.length());
+    int close = message.indexOf(')', open + 1);
+    if (open <= prefix.length() || close != message.length() - 1 || close == open + 1) {
+      return null;
+    }
+    return new DeviceTest(message.substring(open + 1, close),
+        message.substring(prefix.length(), open));
+  }
+}
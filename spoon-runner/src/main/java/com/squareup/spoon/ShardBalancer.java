@@ -0,0 +1,173 @@
+package com.squareup.spoon;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.commons.io.IOUtils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+
+/**
+ * Packs tests into shards of roughly equal wall-clock time using the durations recorded in
+ * previous {@code result.json} files.
+ */
+final class ShardBalancer {
+  /** Average duration, in seconds, of every test found in the given {@code result.json} files. */
+  static Map<DeviceTest, Long> readDurations(Gson gson, List<File> resultFiles) {
+    Map<DeviceTest, long[]> totals = new HashMap<DeviceTest, long[]>();
+    for (File resultFile : resultFiles) {
+      SpoonSummary summary;
+      FileReader reader = null;
+      try {
+        reader = new FileReader(resultFile);
+        summary = gson.fromJson(reader, SpoonSummary.class);
+      } catch (FileNotFoundException e) {
+        logInfo("Ignoring missing shard history %s", resultFile);
+        continue;
+      } catch (JsonParseException e) {
+        logInfo("Ignoring unreadable shard history %s: %s", resultFile, e.getMessage());
+        continue;
+      } finally {
+        IOUtils.closeQuietly(reader);
+      }
+      if (summary == null || summary.getResults() == null) {
+        continue;
+      }
+      for (DeviceResult deviceResult : summary.getResults().values()) {
+        for (Map.Entry<DeviceTest, DeviceTestResult> entry
+            : deviceResult.getTestResults().entrySet()) {
+          long duration = entry.getValue().getDuration();
+          if (duration < 0) {
+            continue; // Never finished.
+          }
+          long[] total = totals.get(entry.getKey());
+          if (total == null) {
+            total = new long[2];
+            totals.put(entry.getKey(), total);
+          }
+          total[0] += duration;
+          total[1] += 1;
+        }
+      }
+    }
+
+    Map<DeviceTest, Long> durations = new HashMap<DeviceTest, Long>();
+    for (Map.Entry<DeviceTest, long[]> entry : totals.entrySet()) {
+      long[] total = entry.getValue();
+      durations.put(entry.getKey(), total[0] / total[1]);
+    }
+    return durations;
+  }
+
+  /**
+   * Split {@code tests} into {@code shardCount} shards using the longest-processing-time-first
+   * heuristic. Tests without a known duration are estimated with the average of their class, or
+   * the average of all known tests if the class is unknown as well.
+   */
+  static List<List<DeviceTest>> balance(List<DeviceTest> tests, Map<DeviceTest, Long> durations,
+      int shardCount) {
+    checkArgument(shardCount > 0, "Shard count must be positive.");
+
+    final Map<DeviceTest, Long> estimates = estimateDurations(tests, durations);
+    List<DeviceTest> sorted = new ArrayList<DeviceTest>(tests);
+    Collections.sort(sorted, new Comparator<DeviceTest>() {
+      @Override public int compare(DeviceTest lhs, DeviceTest rhs) {
+        int compare = estimates.get(rhs).compareTo(estimates.get(lhs));
+        return compare != 0 ? compare : lhs.compareTo(rhs);
+      }
+    });
+
+    PriorityQueue<Shard> shards = new PriorityQueue<Shard>();
+    for (int i = 0; i < shardCount; i++) {
+      shards.add(new Shard(i));
+    }
+    for (DeviceTest test : sorted) {
+      // Always hand the next longest test to the shard which currently finishes first.
+      Shard shard = shards.poll();
+      shard.add(test, estimates.get(test));
+      shards.add(shard);
+    }
+
+    List<List<DeviceTest>> result = new ArrayList<List<DeviceTest>>(shardCount);
+    for (int i = 0; i < shardCount; i++) {
+      result.add(null);
+    }
+    for (Shard shard : shards) {
+      result.set(shard.index, shard.tests);
+    }
+    return result;
+  }
+
+  private static Map<DeviceTest, Long> estimateDurations(List<DeviceTest> tests,
+      Map<DeviceTest, Long> durations) {
+    Map<String, long[]> classTotals = new HashMap<String, long[]>();
+    long total = 0;
+    long count = 0;
+    for (Map.Entry<DeviceTest, Long> entry : durations.entrySet()) {
+      String className = entry.getKey().getClassName();
+      long[] classTotal = classTotals.get(className);
+      if (classTotal == null) {
+        classTotal = new long[2];
+        classTotals.put(className, classTotal);
+      }
+      classTotal[0] += entry.getValue();
+      classTotal[1] += 1;
+      total += entry.getValue();
+      count += 1;
+    }
+    // Without any history every test weighs the same and shards are balanced by count.
+    long overallAverage = count > 0 ? total / count : 1;
+
+    Map<DeviceTest, Long> estimates = new HashMap<DeviceTest, Long>();
+    for (DeviceTest test : tests) {
+      Long duration = durations.get(test);
+      if (duration == null) {
+        long[] classTotal = classTotals.get(test.getClassName());
+        duration = classTotal != null ? classTotal[0] / classTotal[1] : overallAverage;
+      }
+      estimates.put(test, duration);
+    }
+    return estimates;
+  }
+
+  private static final class Shard implements Comparable<Shard> {
+    final int index;
+    final List<DeviceTest> tests = new ArrayList<DeviceTest>();
+    long load;
+
+    Shard(int index) {
+      this.index = index;
+    }
+
+    void add(DeviceTest test, long duration) {
+      tests.add(test);
+      load += duration;
+    }
+
+    @Override public int compareTo(Shard other) {
+      if (load != other.load) {
+        return load < other.load ? -1 : 1;
+      }
+      // Sub-second tests all record a duration of zero, so also spread them out by count.
+      if (tests.size() != other.tests.size()) {
+        return tests.size() < other.tests.size() ? -1 : 1;
+      }
+      return index - other.index;
+    }
+  }
+
+  private ShardBalancer() {
+    // No instances.
+  }
+}
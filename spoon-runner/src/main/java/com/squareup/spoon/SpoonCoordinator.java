@@ -0,0 +1,293 @@
+package com.squareup.spoon;
+
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.FramedChannel.Frame;
+import static com.squareup.spoon.FramedChannel.Type;
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+import static com.squareup.spoon.SpoonUtils.GSON;
+
+/**
+ * Distributes a run across {@link SpoonWorker}s on other hosts. Every device of every worker
+ * executes one shard of the suite; the workers stream back each device's result and the
+ * screenshots it references, which are merged into a single summary.
+ * <p>
+ * Workers prove they belong to the run with a shared secret in their {@link Hello}; the
+ * coordinator sends it back in the {@link Assignment} so that workers can tell it apart from
+ * anything else listening on its port. Frames are not encrypted, so the secret is only as safe as
+ * the network between the hosts.
+ */
+final class SpoonCoordinator {
+  /** Directory of the output below which the files of each worker are stored. */
+  static final String WORKERS_DIR = "workers";
+  static final String FILE_APK = "app.apk";
+  static final String FILE_TEST_APK = "test.apk";
+  /** Upper bound on a screenshot or animation sent by a worker. */
+  static final long MAX_WORKER_FILE = 256 * 1024 * 1024;
+
+  private final ServerSocket server;
+  private final int workerCount;
+  private final int timeoutMs;
+  private final File applicationApk;
+  private final File instrumentationApk;
+  private final File output;
+  private final String title;
+  private final String[] args;
+  private final String secret;
+  private final boolean debug;
+
+  /**
+   * @param server Socket on which workers connect.
+   * @param workerCount Number of workers to wait for before the run starts.
+   * @param timeoutMs Longest time to wait for each worker to connect.
+   * @param args Command line arguments which every worker applies to its devices.
+   * @param secret Secret shared with the workers.
+   */
+  SpoonCoordinator(ServerSocket server, int workerCount, int timeoutMs, File applicationApk,
+      File instrumentationApk, File output, String title, String[] args, String secret,
+      boolean debug) {
+    checkArgument(workerCount > 0, "At least one worker is required.");
+    this.server = checkNotNull(server);
+    this.workerCount = workerCount;
+    this.timeoutMs = timeoutMs;
+    this.applicationApk = checkNotNull(applicationApk);
+    this.instrumentationApk = checkNotNull(instrumentationApk);
+    this.output = checkNotNull(output);
+    this.title = title;
+    this.args = checkNotNull(args);
+    this.secret = checkNotNull(secret);
+    this.debug = debug;
+  }
+
+  /** Wait for the workers, execute the suite on all of their devices and merge the results. */
+  SpoonSummary run() throws IOException {
+    checkArgument(applicationApk.exists(), "Could not find application APK.");
+    checkArgument(instrumentationApk.exists(), "Could not find instrumentation APK.");
+    FileUtils.deleteDirectory(output);
+
+    List<Worker> workers = acceptWorkers();
+    try {
+      int numShards = 0;
+      for (Worker worker : workers) {
+        for (String serial : worker.hello.devices) {
+          worker.shards.put(serial, numShards++);
+        }
+      }
+      if (numShards == 0) {
+        throw new RuntimeException("No device(s) found on any worker.");
+      }
+      logInfo("Executing instrumentation suite in %d shard(s) on %d worker(s).", numShards,
+          workers.size());
+
+      final SpoonSummary.Builder summary = new SpoonSummary.Builder().setTitle(title).start();
+      final Set<String> keys = new HashSet<String>();
+      List<Thread> threads = new ArrayList<Thread>();
+      for (final Worker worker : workers) {
+        worker.channel.sendFile(FILE_APK, applicationApk);
+        worker.channel.sendFile(FILE_TEST_APK, instrumentationApk);
+        worker.channel.send(Type.ASSIGN,
+            GSON.toJson(new Assignment(args, numShards, worker.shards, secret)));
+
+        Thread thread = new Thread(new Runnable() {
+          @Override public void run() {
+            collect(worker, summary, keys);
+          }
+        }, "spoon-coordinator-" + worker.id);
+        thread.start();
+        threads.add(thread);
+      }
+      for (Thread thread : threads) {
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException(e);
+        }
+      }
+      return summary.end().build();
+    } finally {
+      for (Worker worker : workers) {
+        IOUtils.closeQuietly(worker.socket);
+      }
+    }
+  }
+
+  private List<Worker> acceptWorkers() throws IOException {
+    server.setSoTimeout(timeoutMs);
+    List<Worker> workers = new ArrayList<Worker>();
+    logInfo("Waiting for %d worker(s) on port %d.", workerCount, server.getLocalPort());
+    while (workers.size() < workerCount) {
+      Socket socket;
+      try {
+        socket = server.accept();
+      } catch (SocketTimeoutException e) {
+        if (workers.isEmpty()) {
+          throw new IOException("No worker connected within " + timeoutMs + "ms.");
+        }
+        logInfo("Only %d of %d worker(s) connected, starting without the rest.", workers.size(),
+            workerCount);
+        break;
+      }
+      FramedChannel channel =
+          new FramedChannel(socket.getInputStream(), socket.getOutputStream());
+      Frame frame = channel.receive();
+      if (frame == null || frame.type != Type.HELLO) {
+        logInfo("Ignoring connection from %s: expected a worker but got %s",
+            socket.getRemoteSocketAddress(), frame);
+        IOUtils.closeQuietly(socket);
+        continue;
+      }
+      Hello hello = GSON.fromJson(frame.payload, Hello.class);
+      if (!SpoonUtils.secretsMatch(secret, hello.secret)) {
+        logInfo("Ignoring worker at %s: wrong secret.", socket.getRemoteSocketAddress());
+        IOUtils.closeQuietly(socket);
+        continue;
+      }
+      int id = workers.size();
+      logInfo("Worker %d (%s) connected with device(s) %s.", id, hello.name, hello.devices);
+      File directory = new File(new File(output, WORKERS_DIR),
+          id + "-" + SpoonUtils.sanitizeSerial(hello.name));
+      workers.add(new Worker(id, socket, channel, hello, directory));
+    }
+    return workers;
+  }
+
+  /** Read the results and files of a worker until it finishes or the connection drops. */
+  private void collect(Worker worker, SpoonSummary.Builder summary, Set<String> keys) {
+    Gson gson = SpoonUtils.relativeGson(worker.directory);
+    Set<String> finished = new HashSet<String>();
+    try {
+      Frame frame;
+      while ((frame = worker.channel.receive()) != null && frame.type != Type.EXIT) {
+        switch (frame.type) {
+          case OUTPUT:
+            logDebug(debug, "[%s] %s", worker.hello.name, frame.payload);
+            break;
+          case FILE:
+            worker.channel.receiveFile(resolve(worker.directory, frame.payload),
+                MAX_WORKER_FILE);
+            break;
+          case RESULT:
+            Result result = gson.fromJson(frame.payload, Result.class);
+            finished.add(result.serial);
+            addResult(summary, keys, worker, result.serial, result.result);
+            break;
+          default:
+            throw new IOException("Unexpected frame from worker: " + frame);
+        }
+      }
+      if (frame != null && !"0".equals(frame.payload)) {
+        logInfo("Worker %d (%s) exited with status %s.", worker.id, worker.hello.name,
+            frame.payload);
+      }
+    } catch (IOException e) {
+      logInfo("Lost connection to worker %d (%s): %s", worker.id, worker.hello.name,
+          e.getMessage());
+    }
+
+    for (String serial : worker.shards.keySet()) {
+      if (!finished.contains(serial)) {
+        DeviceResult lost = new DeviceResult.Builder()
+            .addException("Worker " + worker.hello.name + " did not return a result.")
+            .build();
+        addResult(summary, keys, worker, serial, lost);
+      }
+    }
+  }
+
+  private static void addResult(SpoonSummary.Builder summary, Set<String> keys, Worker worker,
+      String serial, DeviceResult result) {
+    // Serials are only unique per host, e.g. every host may have an emulator-5554.
+    String key = SpoonUtils.sanitizeSerial(serial);
+    synchronized (keys) {
+      if (!keys.add(key)) {
+        key = key + "_" + SpoonUtils.sanitizeSerial(worker.hello.name) + "_" + worker.id;
+        keys.add(key);
+      }
+    }
+    summary.addResult(key, result);
+  }
+
+  /** Resolve a file name sent by a worker, refusing any which escape its directory. */
+  private static File resolve(File directory, String name) throws IOException {
+    File file = new File(directory, name);
+    String root = directory.getCanonicalPath() + File.separator;
+    if (!file.getCanonicalPath().startsWith(root)) {
+      throw new IOException("Worker sent a file outside of its directory: " + name);
+    }
+    return file;
+  }
+
+  private static final class Worker {
+    final int id;
+    final Socket socket;
+    final FramedChannel channel;
+    final Hello hello;
+    final File directory;
+    final Map<String, Integer> shards = new LinkedHashMap<String, Integer>();
+
+    Worker(int id, Socket socket, FramedChannel channel, Hello hello, File directory) {
+      this.id = id;
+      this.socket = socket;
+      this.channel = channel;
+      this.hello = hello;
+      this.directory = directory;
+    }
+  }
+
+  /** Sent by a worker when it connects. */
+  static final class Hello {
+    final String name;
+    final List<String> devices;
+    final String secret;
+
+    Hello(String name, List<String> devices, String secret) {
+      this.name = name;
+      this.devices = devices;
+      this.secret = secret;
+    }
+  }
+
+  /** The arguments of the run and the shard each device of a worker executes. */
+  static final class Assignment {
+    final String[] args;
+    final int numShards;
+    final Map<String, Integer> shards;
+    final String secret;
+
+    Assignment(String[] args, int numShards, Map<String, Integer> shards, String secret) {
+      this.args = args;
+      this.numShards = numShards;
+      this.shards = shards;
+      this.secret = secret;
+    }
+  }
+
+  /** The result of one device of a worker. */
+  static final class Result {
+    final String serial;
+    final DeviceResult result;
+
+    Result(String serial, DeviceResult result) {
+      this.serial = serial;
+      this.result = result;
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.beust.jcommander.JCommander;
+import com.squareup.spoon.html.HtmlRenderer;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import static com.squareup.spoon.FramedChannel.Frame;
+import static com.squareup.spoon.FramedChannel.Type;
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+import static com.squareup.spoon.SpoonUtils.GSON;
+
+/**
+ * Keeps a JVM and its ADB bridge resident so that repeated runs skip JVM startup and ADB
+ * initialization. Runs are submitted over a loopback socket by {@link #submit(int, String...)}
+ * and executed one at a time, with their console output streamed back to the submitter.
+ * <p>
+ * Other users of the host can reach the socket too, so every request carries a token which the
+ * daemon writes to {@link #tokenFile(int)} readable by its owner only.
+ */
+final class SpoonDaemon {
+  static final int DEFAULT_PORT = 7447;
+  /** Returned by {@link #submit(int, String...)} when no daemon accepts the connection. */
+  static final int NOT_RUNNING = -1;
+  /** Longest time a client may take to send its request once connected. */
+  private static final int REQUEST_TIMEOUT_MS = 10000;
+
+  private final File androidSdk;
+  private final int port;
+  private final boolean debug;
+
+  SpoonDaemon(File androidSdk, int port, boolean debug) {
+    this.androidSdk = androidSdk;
+    this.port = port;
+    this.debug = debug;
+  }
+
+  /** File holding the token of the daemon on {@code port}, in the user's home directory. */
+  static File tokenFile(int port) {
+    return FileUtils.getFile(System.getProperty("user.home"), ".spoon",
+        "daemon-" + port + ".token");
+  }
+
+  /** Connect to ADB and execute submitted runs until the process is killed. */
+  void serve() throws IOException {
+    final String token = writeToken(tokenFile(port));
+    final AndroidDebugBridge adb = SpoonUtils.initAdb(androidSdk);
+    final DeviceWatcher devices = DeviceWatcher.start(adb);
+
+    // Requests are accepted as they arrive and executed one at a time.
+    ExecutorService runs = Executors.newSingleThreadExecutor();
+    final AtomicInteger waiting = new AtomicInteger();
+    ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName(null));
+    logInfo("Spoon daemon listening on port %d.", port);
+    while (true) {
+      final Socket socket = server.accept();
+      final FramedChannel channel;
+      final Request request;
+      try {
+        channel = new FramedChannel(socket.getInputStream(), socket.getOutputStream());
+        request = receiveRequest(channel, socket, token);
+      } catch (IOException e) {
+        logInfo("Refused client: %s", e.getMessage());
+        IOUtils.closeQuietly(socket);
+        continue;
+      }
+      int ahead = waiting.getAndIncrement();
+      if (ahead > 0) {
+        try {
+          channel.send(Type.OUTPUT, "Daemon is busy, waiting for " + ahead + " run(s) to finish.");
+        } catch (IOException e) {
+          logInfo("Lost connection to client: %s", e.getMessage());
+        }
+      }
+      runs.execute(new Runnable() {
+        @Override public void run() {
+          try {
+            handle(adb, devices, channel, request);
+          } catch (IOException e) {
+            logInfo("Lost connection to client: %s", e.getMessage());
+          } finally {
+            waiting.decrementAndGet();
+            IOUtils.closeQuietly(socket);
+          }
+        }
+      });
+    }
+  }
+
+  /** Read the request of a client, refusing it unless it carries {@code token}. */
+  private static Request receiveRequest(FramedChannel channel, Socket socket, String token)
+      throws IOException {
+    socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+    Frame frame = channel.receive();
+    if (frame == null || frame.type != Type.REQUEST) {
+      throw new IOException("Expected a request but got " + frame);
+    }
+    Request request = GSON.fromJson(frame.payload, Request.class);
+    if (!SpoonUtils.secretsMatch(token, request.token)) {
+      channel.send(Type.OUTPUT, "Daemon refused the run: wrong token.");
+      channel.send(Type.EXIT, "1");
+      throw new IOException("Wrong token.");
+    }
+    socket.setSoTimeout(0);
+    return request;
+  }
+
+  /** Write a new random token to {@code file}, readable and writable by the owner only. */
+  static String writeToken(File file) throws IOException {
+    byte[] random = new byte[32];
+    new SecureRandom().nextBytes(random);
+    StringBuilder token = new StringBuilder();
+    for (byte b : random) {
+      token.append(String.format("%02x", b & 0xff));
+    }
+
+    File directory = file.getParentFile();
+    directory.mkdirs();
+    ownerOnly(directory, true);
+    file.delete();
+    if (!file.createNewFile()) {
+      throw new IOException("Unable to create token file " + file);
+    }
+    // Restrict the file before the token is in it.
+    ownerOnly(file, false);
+    FileUtils.writeStringToFile(file, token.toString(), "UTF-8");
+    return token.toString();
+  }
+
+  /** Limit {@code file} to its owner, i.e. mode 0600 or 0700 for directories. */
+  private static void ownerOnly(File file, boolean directory) throws IOException {
+    boolean restricted = file.setReadable(false, false) && file.setWritable(false, false)
+        && file.setExecutable(false, false) && file.setReadable(true, true)
+        && file.setWritable(true, true) && (!directory || file.setExecutable(true, true));
+    if (!restricted) {
+      throw new IOException("Unable to restrict access to " + file);
+    }
+  }
+
+  private void handle(AndroidDebugBridge adb, DeviceWatcher devices, FramedChannel channel,
+      Request request) throws IOException {
+    logInfo("Executing run for %s", request.workingDirectory);
+
+    // Everything the run prints, from any thread, is mirrored to the client while it executes.
+    PrintStream stdout = System.out;
+    PrintStream stderr = System.err;
+    PrintStream client = new PrintStream(new FramedLineOutputStream(channel, stdout), true);
+    System.setOut(client);
+    System.setErr(client);
+    int exitCode;
+    try {
+      exitCode = execute(adb, devices.getOnlineDevices(), request);
+    } catch (Throwable e) {
+      e.printStackTrace();
+      exitCode = 1;
+    } finally {
+      client.flush();
+      System.setOut(stdout);
+      System.setErr(stderr);
+    }
+    logInfo("Run finished with exit code %d", exitCode);
+    channel.send(Type.EXIT, Integer.toString(exitCode));
+  }
+
+  private int execute(AndroidDebugBridge adb, Set<String> devices, Request request) {
+    SpoonRunner.CommandLineArgs parsedArgs = new SpoonRunner.CommandLineArgs();
+    new JCommander(parsedArgs).parse(request.args);
+    File workingDirectory = new File(request.workingDirectory);
+    parsedArgs.apk = resolve(workingDirectory, parsedArgs.apk);
+    parsedArgs.testApk = resolve(workingDirectory, parsedArgs.testApk);
+    parsedArgs.output = resolve(workingDirectory, parsedArgs.output);
+    parsedArgs.sdk = androidSdk;
+    if (parsedArgs.shardHistory != null) {
+      List<String> shardHistory = new ArrayList<String>();
+      for (String resultJson : parsedArgs.shardHistory) {
+        shardHistory.add(resolve(workingDirectory, new File(resultJson)).getPath());
+      }
+      parsedArgs.shardHistory = shardHistory;
+    }
+    HtmlRenderer.setPrettify(!parsedArgs.nopretty);
+
+    logDebug(debug, "Online devices: %s", devices);
+    SpoonRunner.Builder builder = SpoonRunner.newBuilder(parsedArgs);
+    if (parsedArgs.deviceSerial != null && !parsedArgs.deviceSerial.equals("")) {
+      builder.addDevice(parsedArgs.deviceSerial);
+    } else if (!devices.isEmpty()) {
+      for (String serial : devices) {
+        builder.addDevice(serial);
+      }
+    } else {
+      builder.useAllAttachedDevices();
+    }
+
+    boolean success = builder.build().run(adb, parsedArgs);
+    return success || !parsedArgs.failOnFailure ? 0 : 1;
+  }
+
+  private static File resolve(File workingDirectory, File file) {
+    if (file == null || file.isAbsolute()) {
+      return file;
+    }
+    return new File(workingDirectory, file.getPath());
+  }
+
+  /**
+   * Submit a run with the given command line arguments to the daemon listening on {@code port}
+   * and print its output as it arrives.
+   *
+   * @return the exit code of the run, or {@link #NOT_RUNNING} if no daemon is listening.
+   */
+  static int submit(int port, String... args) throws IOException {
+    File tokenFile = tokenFile(port);
+    if (!tokenFile.exists()) {
+      return NOT_RUNNING;
+    }
+    String token = SpoonUtils.readSecret(tokenFile);
+    Socket socket;
+    try {
+      socket = new Socket(InetAddress.getByName(null), port);
+    } catch (ConnectException e) {
+      return NOT_RUNNING;
+    }
+    try {
+      FramedChannel channel =
+          new FramedChannel(socket.getInputStream(), socket.getOutputStream());
+      Request request = new Request(new File("").getAbsolutePath(), args, token);
+      channel.send(Type.REQUEST, GSON.toJson(request));
+
+      Frame frame;
+      while ((frame = channel.receive()) != null) {
+        switch (frame.type) {
+          case OUTPUT:
+            System.out.println(frame.payload);
+            break;
+          case EXIT:
+            return Integer.parseInt(frame.payload);
+          default:
+            throw new IOException("Unexpected frame from daemon: " + frame);
+        }
+      }
+      throw new IOException("Daemon closed the connection before the run finished.");
+    } finally {
+      IOUtils.closeQuietly(socket);
+    }
+  }
+
+  /** A run submitted to the daemon. */
+  static final class Request {
+    final String workingDirectory;
+    final String[] args;
+    final String token;
+
+    Request(String workingDirectory, String[] args, String token) {
+      this.workingDirectory = workingDirectory;
+      this.args = args;
+      this.token = token;
+    }
+  }
+}
@@ -3,93 +3,51 @@ package com.squareup.spoon;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.logcat.LogCatListener;
 import com.android.ddmlib.logcat.LogCatMessage;
-import com.android.ddmlib.logcat.LogCatReceiverTask;
-import java.util.Arrays;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.io.File;
 import java.util.List;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+/**
+ * Collects the logcat of a device during a run, split into the logs of individual tests as it
+ * arrives. See {@link LogcatSegmenter}.
+ */
 final class SpoonDeviceLogger implements LogCatListener {
-  private static final String TEST_RUNNER = "TestRunner";
-  private static final Pattern MESSAGE_START = Pattern.compile("started: ([^(]+)\\(([^)]+)\\)");
-  private static final Pattern MESSAGE_END = Pattern.compile("finished: [^(]+\\([^)]+\\)");
-
-  private final List<LogCatMessage> messages;
-  private final LogCatReceiverTask logCatReceiverTask;
-  private final List<String> filterTags;
-
-  public SpoonDeviceLogger(IDevice device, List<String> filterTags) {
-    messages = new ArrayList<LogCatMessage>();
-    this.filterTags = filterTags;
-    logCatReceiverTask = new LogCatReceiverTask(device);
-    logCatReceiverTask.addLogCatListener(this);
+  private final LogcatSegmenter segmenter;
+  private final LogcatReceiver receiver;
+  private final LogFilter filter;
+
+  /**
+   * @param binary Whether logcat is read in its binary format rather than as text.
+   * @param limits How much of the log of each test is kept.
+   * @param directory Directory for the segment files of the log store.
+   */
+  public SpoonDeviceLogger(IDevice device, LogFilter filter, boolean binary, LogLimits limits,
+      File directory) {
+    segmenter = new LogcatSegmenter(new LogStore(directory), limits);
+    this.filter = filter;
+    // Drop what the filter can on the device; the rest is filtered again as it arrives.
+    receiver = new LogcatReceiver(device, filter.toFilterspec(), binary, this);
 
     // Start a background thread to monitor the device logs. This will exit when we call stop below.
-    new Thread(logCatReceiverTask).start();
+    new Thread(receiver).start();
   }
 
-  private boolean nonEmptyIntersection(List one, List two){
-    boolean found = false;
-    for (Iterator it = one.iterator(); it.hasNext(); ) {
-      if(two.contains(it.next())){
-        found = true;
-        break;
+  @Override public void log(List<LogCatMessage> msgList) {
+    for (LogCatMessage msg : msgList) {
+      if (filter.accepts(msg)) {
+        segmenter.add(msg);
       }
     }
-    return found;
   }
 
-  //TODO: match the tags here with the ones in HtmlLog, including tag-%%%
-  @Override public void log(List<LogCatMessage> msgList) {
-    synchronized (messages) {
-      for (Iterator<LogCatMessage> it = msgList.iterator(); it.hasNext(); ) {
-        LogCatMessage msg = it.next();
-        List<String> curTags = Arrays.asList(msg.getTag().split("&"));
-        // Only add if no filterTags contains no tag or the current tag is contained in filterTags
-        if(filterTags == null || nonEmptyIntersection(filterTags, curTags) || curTags.contains("TestRunner")){
-          messages.add(msg);
-        }
-      }
-    }
+  /** Number of lines dropped from the logs of tests by the log limits. */
+  public Map<DeviceTest, Integer> getDroppedLines() {
+    return segmenter.getDroppedLines();
   }
 
+  /** Stop collecting logcat and return the logs of every test. */
   public Map<DeviceTest, List<LogCatMessage>> getParsedLogs() {
-    logCatReceiverTask.stop();
-
-    Map<DeviceTest, List<LogCatMessage>> logs = new HashMap<DeviceTest, List<LogCatMessage>>();
-    DeviceTest current = null;
-    String pid = null;
-    synchronized (messages) {
-      for (LogCatMessage message : messages) {
-        if (current == null) {
-          Matcher match = MESSAGE_START.matcher(message.getMessage());
-          if (match.matches() && TEST_RUNNER.equals(message.getTag())) {
-            current = new DeviceTest(match.group(2), match.group(1));
-            pid = message.getPid();
-
-            List<LogCatMessage> deviceLogMessages = new ArrayList<LogCatMessage>();
-            deviceLogMessages.add(message);
-            logs.put(current, deviceLogMessages);
-          }
-        } else {
-          //Log everything
-          //if (pid.equals(message.getPid())) {
-            logs.get(current).add(message);
-          //}
-
-          Matcher match = MESSAGE_END.matcher(message.getMessage());
-          if (match.matches() && TEST_RUNNER.equals(message.getTag())) {
-            current = null;
-            pid = null;
-          }
-        }
-      }
-    }
-    return logs;
+    receiver.stop();
+    return segmenter.finish();
   }
 }
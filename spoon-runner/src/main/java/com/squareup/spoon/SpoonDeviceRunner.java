@@ -3,47 +3,51 @@ package com.squareup.spoon;
 import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.IDevice;
 import com.android.ddmlib.InstallException;
-import com.android.ddmlib.SyncService;
 import com.android.ddmlib.logcat.LogCatMessage;
 import com.android.ddmlib.testrunner.RemoteAndroidTestRunner;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.android.ddmlib.CollectingOutputReceiver;
 import com.google.common.base.Strings;
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.commons.io.IOUtils;
 import com.squareup.spoon.adapters.TestIdentifierAdapter;
 
 
-import static com.android.ddmlib.FileListingService.FileEntry;
+import static com.google.common.base.Preconditions.checkState;
 import static com.squareup.spoon.Spoon.SPOON_SCREENSHOTS;
 import static com.squareup.spoon.SpoonLogger.logDebug;
 import static com.squareup.spoon.SpoonLogger.logError;
 import static com.squareup.spoon.SpoonLogger.logInfo;
 import static com.squareup.spoon.SpoonUtils.GSON;
-import static com.squareup.spoon.SpoonUtils.createAnimatedGif;
-import static com.squareup.spoon.SpoonUtils.obtainDirectoryFileEntry;
 import static com.squareup.spoon.SpoonUtils.obtainRealDevice;
 
 /** Represents a single device and the test configuration to be executed. */
 public final class SpoonDeviceRunner {
   private static final String FILE_EXECUTION = "execution.json";
-  private static final String FILE_RESULT = "result.json";
   static final String TEMP_DIR = "work";
   static final String JUNIT_DIR = "junit-reports";
   static final String IMAGE_DIR = "image";
+  /** Directory of the work directory holding the logcat store of a device. */
+  static final String LOGCAT_DIR = "logcat";
+  /**
+   * Longest list of test names passed to one instrumentation run. Devices before Android 7 refuse
+   * shell commands over 4 KB, so larger lists are run in several batches.
+   */
+  private static final int MAX_TEST_NAMES_LENGTH = 3000;
 
   private final File sdk;
   private final File apk;
@@ -52,18 +56,30 @@ public final class SpoonDeviceRunner {
   private final boolean debug;
   private final boolean noAnimations;
   private final boolean noInstall;
-  private final List<String> filterTags;
+  private final LogFilter logFilter;
   private final int adbTimeout;
   private final String subpackageName;
   private final String className;
   private final String methodName;
   private final String runId;
+  private final int numShards;
+  private final int shardIndex;
+  private final List<DeviceTest> tests;
+  private final transient SpoonTestQueue queue;
+  private final boolean eventsToStdout;
+  private final int retryFailed;
+  private final transient ChildJvm childJvm;
+  private final boolean binaryLogcat;
+  private final LogLimits logLimits;
   private final IRemoteAndroidTestRunner.TestSize testSize;
   private final File work;
   private final File junitReport;
+  private final File eventLog;
   private final File imageDir;
   private final String classpath;
   private final SpoonInstrumentationInfo instrumentationInfo;
+  /** Channel to the parent runner when executing in a separate process. Not serialized. */
+  private transient FramedChannel parent;
 
   /**
    * Create a test runner for a single device.
@@ -80,12 +96,25 @@ public final class SpoonDeviceRunner {
    * @param className Test class name to run or {@code null} to run all tests.
    * @param methodName Test method name to run or {@code null} to run all tests.  Must also pass
    *        {@code className}.
+   * @param numShards Number of shards the suite is split into, or {@code 0} to run the full suite.
+   * @param shardIndex Index of the shard to run on this device when {@code numShards} is set.
+   * @param tests Explicit tests to run on this device, or {@code null} to select them with the
+   *        other arguments.
+   * @param queue Shared queue to pull test classes from until it is empty, or {@code null} to
+   *        run all selected tests at once. Only usable in-process.
+   * @param eventsToStdout Whether per-test events are also printed to standard out.
+   * @param retryFailed Number of times tests which failed are run again, or {@code 0}.
+   * @param childJvm Starts the JVM for {@link #runInNewProcess()}.
+   * @param binaryLogcat Whether logcat is read in its binary format rather than as text.
+   * @param logLimits How much of the log of each test is kept.
    */
   SpoonDeviceRunner(File sdk, File apk, File testApk, File output, String serial, boolean debug,
       boolean noAnimations, int adbTimeout, String classpath,
       SpoonInstrumentationInfo instrumentationInfo, String subpackageName, String className, 
-      String methodName, boolean noInstall, List<String> filterTags,
-      IRemoteAndroidTestRunner.TestSize testSize, String runId) {
+      String methodName, boolean noInstall, LogFilter logFilter,
+      IRemoteAndroidTestRunner.TestSize testSize, String runId, int numShards, int shardIndex,
+      List<DeviceTest> tests, SpoonTestQueue queue, boolean eventsToStdout, int retryFailed,
+      ChildJvm childJvm, boolean binaryLogcat, LogLimits logLimits) {
     this.sdk = sdk;
     this.apk = apk;
     this.testApk = testApk;
@@ -97,20 +126,34 @@ public final class SpoonDeviceRunner {
     this.className = className;
     this.methodName = methodName;
     this.noInstall = noInstall;
-    this.filterTags = filterTags;
+    this.logFilter = logFilter;
     this.testSize = testSize;
     this.runId = runId;
+    this.numShards = numShards;
+    this.shardIndex = shardIndex;
+    this.tests = tests;
+    this.queue = queue;
+    this.eventsToStdout = eventsToStdout;
+    this.retryFailed = retryFailed;
+    this.childJvm = childJvm;
+    this.binaryLogcat = binaryLogcat;
+    this.logLimits = logLimits;
     this.classpath = classpath;
     this.instrumentationInfo = instrumentationInfo;
 
     serial = SpoonUtils.sanitizeSerial(serial);
     this.work = FileUtils.getFile(output, TEMP_DIR, serial);
     this.junitReport = FileUtils.getFile(output, JUNIT_DIR, serial + ".xml");
+    this.eventLog = new File(output, SpoonEventLog.FILE_EVENTS);
     this.imageDir = FileUtils.getFile(output, IMAGE_DIR, serial);
   }
 
-  /** Serialize to disk and start {@link #main(String...)} in another process. */
+  /**
+   * Serialize to disk and start {@link #main(String...)} in another process. The process streams
+   * its output, per-test events and result back as frames over its standard out.
+   */
   public DeviceResult runInNewProcess() throws IOException, InterruptedException {
+    checkState(queue == null, "A test queue cannot be shared with another process.");
     logDebug(debug, "[%s]", serial);
 
     // Create the output directory.
@@ -123,34 +166,260 @@ public final class SpoonDeviceRunner {
 
     // Kick off a new process to interface with ADB and perform the real execution.
     String name = SpoonDeviceRunner.class.getName();
-    Process process = new ProcessBuilder("java", "-Djava.awt.headless=true", "-cp", classpath, name,
-        work.getAbsolutePath()).start();
-    printStream(process.getInputStream(), "STDOUT");
-    printStream(process.getErrorStream(), "STDERR");
-
-    final int exitCode = process.waitFor();
+    Process process = childJvm.start(classpath, name, work.getAbsolutePath());
+    DeviceProcessStream stdout = new DeviceProcessStream(serial, eventsToStdout, debug);
+    final int exitCode;
+    try {
+      process.getOutputStream().close();
+      // Drained on its own thread so that a full stderr pipe can never block the process.
+      Thread stderr = printStream(process.getErrorStream(), "STDERR");
+      try {
+        stdout.read(process.getInputStream());
+      } catch (IOException e) {
+        process.destroy();
+        throw e;
+      }
+      exitCode = process.waitFor();
+      stderr.join();
+    } finally {
+      childJvm.exited(process);
+    }
     logDebug(debug, "Process.waitFor() finished for [%s] with exitCode %d", serial, exitCode);
 
-    // Read the result from a file in the output directory.
-    FileReader resultFile = new FileReader(new File(work, FILE_RESULT));
-    DeviceResult result = GSON.fromJson(resultFile, DeviceResult.class);
-    resultFile.close();
-
+    DeviceResult result = stdout.getResult();
+    if (result == null) {
+      return stdout.getPartialResult(
+          "Device process exited with code " + exitCode + " before returning a result.");
+    }
     return result;
   }
 
-  private void printStream(InputStream stream, String tag) throws IOException {
-    BufferedReader stdout = new BufferedReader(new InputStreamReader(stream));
-    String s;
-    while ((s = stdout.readLine()) != null) {
-      logDebug(debug, "[%s] %s %s", serial, tag, s);
+  private Thread printStream(final InputStream stream, final String tag) {
+    Thread thread = new Thread(new Runnable() {
+      @Override public void run() {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+        try {
+          String s;
+          while ((s = reader.readLine()) != null) {
+            logDebug(debug, "[%s] %s %s", serial, tag, s);
+          }
+        } catch (IOException ignored) {
+          // The process exited.
+        } finally {
+          IOUtils.closeQuietly(reader);
+        }
+      }
+    }, "spoon-" + tag.toLowerCase(Locale.US) + "-" + serial);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Install both APKs, returning a failure message or {@code null} if both were installed. An APK
+   * whose identical build is already installed is left alone.
+   */
+  private String installApks(IDevice device) throws InstallException {
+    String appPackage = instrumentationInfo.getApplicationPackage();
+    if (InstalledApk.isInstalled(device, appPackage, apk, debug)) {
+      logInfo("[%s] app apk is already installed, skipping install.", serial);
+    } else {
+      String installError = device.installPackage(apk.getAbsolutePath(), true);
+      if (installError != null) {
+        logInfo("[%s] app apk install failed.  Error [%s]", serial, installError);
+        return "Unable to install application APK.";
+      }
     }
+    String testPackage = instrumentationInfo.getInstrumentationPackage();
+    if (InstalledApk.isInstalled(device, testPackage, testApk, debug)) {
+      logInfo("[%s] test apk is already installed, skipping install.", serial);
+    } else {
+      String installError = device.installPackage(testApk.getAbsolutePath(), true);
+      if (installError != null) {
+        logInfo("[%s] test apk install failed.  Error [%s]", serial, installError);
+        return "Unable to install instrumentation APK.";
+      }
+    }
+    return null;
+  }
+
+  /** Create an instrumentation runner restricted to the tests this device should execute. */
+  private RemoteAndroidTestRunner createTestRunner(IDevice device) {
+    return createTestRunner(device, null, null);
+  }
+
+  /**
+   * Create an instrumentation runner restricted to the tests this device should execute, to
+   * {@code queuedClass} if a class was taken from the queue, or to {@code testNames} if the
+   * explicit tests are run in batches.
+   */
+  private RemoteAndroidTestRunner createTestRunner(IDevice device, String queuedClass,
+      String[] testNames) {
+    String testPackage = instrumentationInfo.getInstrumentationPackage();
+    String testRunner = instrumentationInfo.getTestRunnerClass();
+    RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(testPackage, testRunner, device);
+    if(!Strings.isNullOrEmpty(subpackageName) && queuedClass == null)
+      runner.setTestPackageName(subpackageName);
+    runner.setMaxtimeToOutputResponse(adbTimeout);
+    if (queuedClass != null) {
+      // Queued classes were listed with the sub-package and class filters already applied.
+      if (Strings.isNullOrEmpty(methodName)) {
+        runner.setClassName(queuedClass);
+      } else {
+        runner.setMethodName(queuedClass, methodName);
+      }
+    } else if (testNames != null) {
+      // An explicit list was computed up front and already honors the class and method filters.
+      runner.setClassNames(testNames);
+    } else if (!Strings.isNullOrEmpty(className)) {
+      if (Strings.isNullOrEmpty(methodName)) {
+        runner.setClassName(className);
+      } else {
+        runner.setMethodName(className, methodName);
+      }
+    }
+    if (testSize != null) {
+      runner.setTestSize(testSize);
+    }
+    if (queuedClass == null && tests == null && numShards > 1) {
+      logDebug(debug, "[%s] Running shard %d of %d", serial, shardIndex, numShards);
+      runner.addInstrumentationArg("numShards", Integer.toString(numShards));
+      runner.addInstrumentationArg("shardIndex", Integer.toString(shardIndex));
+    }
+    return runner;
+  }
+
+  /**
+   * Keep taking classes from the shared queue and fold their results into {@code result} until
+   * the queue is drained.
+   */
+  private void runQueuedClasses(IDevice device, DeviceResult.Builder result,
+      TestIdentifierAdapter testIdentifierAdapter, SpoonEventLog events,
+      SpoonScreenshotPuller screenshotPuller) throws Exception {
+    result.startTests();
+    try {
+      String queuedClass;
+      while ((queuedClass = queue.next()) != null) {
+        logDebug(debug, "[%s] Running %s (%d classes left in queue)", serial, queuedClass,
+            queue.size());
+        File classReport = FileUtils.getFile(junitReport.getParentFile(),
+            SpoonUtils.sanitizeSerial(serial), queuedClass + ".xml");
+        RemoteAndroidTestRunner runner = createTestRunner(device, queuedClass, null);
+        try {
+          runner.run(
+              new SpoonTestRunListener(result, debug, testIdentifierAdapter, false, events),
+              new XmlTestRunListener(classReport),
+              screenshotPuller
+          );
+        } catch (Exception e) {
+          requeueIfGone(queuedClass);
+          throw e;
+        }
+        if (requeueIfGone(queuedClass)) {
+          throw new IllegalStateException("Device went away while running " + queuedClass);
+        }
+      }
+    } finally {
+      result.endTests();
+    }
+  }
+
+  /**
+   * Let another device run {@code queuedClass} if this device is no longer online, rather than
+   * losing the class along with the device.
+   */
+  private boolean requeueIfGone(String queuedClass) {
+    AndroidDebugBridge adb = AndroidDebugBridge.getBridge();
+    if (adb == null) {
+      return false;
+    }
+    for (IDevice device : adb.getDevices()) {
+      if (device.getSerialNumber().equals(serial) && device.isOnline()) {
+        return false;
+      }
+    }
+    logInfo("[%s] Device went away, returning %s to the queue.", serial, queuedClass);
+    queue.requeue(queuedClass);
+    return true;
+  }
+
+  /**
+   * Run the explicit tests of this device in batches short enough for one shell command, folding
+   * their results into {@code result}. Each batch after the first has its own JUnit report.
+   */
+  private void runTestBatches(IDevice device, List<String[]> batches,
+      DeviceResult.Builder result, TestIdentifierAdapter testIdentifierAdapter,
+      SpoonEventLog events, SpoonScreenshotPuller screenshotPuller) throws Exception {
+    result.startTests();
+    try {
+      for (int i = 0; i < batches.size(); i++) {
+        logDebug(debug, "[%s] Running batch %d of %d", serial, i + 1, batches.size());
+        File batchReport = i == 0 ? junitReport
+            : new File(junitReport.getParentFile(), serial + "-" + i + ".xml");
+        createTestRunner(device, null, batches.get(i)).run(
+            new SpoonTestRunListener(result, debug, testIdentifierAdapter, false, events),
+            new XmlTestRunListener(batchReport),
+            screenshotPuller
+        );
+      }
+    } finally {
+      result.endTests();
+    }
+  }
+
+  /**
+   * The {@code class#method} names of {@code tests}, split so that the comma separated names of
+   * each batch are at most {@code maxLength} long. Longer single names get a batch of their own.
+   */
+  static List<String[]> testNameBatches(List<DeviceTest> tests, int maxLength) {
+    List<String[]> batches = new ArrayList<String[]>();
+    List<String> batch = new ArrayList<String>();
+    int length = 0;
+    for (DeviceTest test : tests) {
+      String name = test.getClassName() + "#" + test.getMethodName();
+      int added = batch.isEmpty() ? name.length() : name.length() + 1;
+      if (!batch.isEmpty() && length + added > maxLength) {
+        batches.add(batch.toArray(new String[batch.size()]));
+        batch.clear();
+        length = 0;
+        added = name.length();
+      }
+      batch.add(name);
+      length += added;
+    }
+    if (!batch.isEmpty()) {
+      batches.add(batch.toArray(new String[batch.size()]));
+    }
+    return batches;
+  }
+
+  /**
+   * Install the APKs and list the tests that {@link #run(AndroidDebugBridge)} would execute,
+   * without running them.
+   */
+  public List<DeviceTest> collectTests(AndroidDebugBridge adb) throws Exception {
+    String testRunner = instrumentationInfo.getTestRunnerClass();
+    TestIdentifierAdapter testIdentifierAdapter = TestIdentifierAdapter.fromTestRunner(testRunner);
+
+    IDevice device = obtainRealDevice(adb, serial);
+    if (!noInstall) {
+      String installError = installApks(device);
+      if (installError != null) {
+        throw new IllegalStateException("[" + serial + "] " + installError);
+      }
+    }
+
+    logDebug(debug, "About to list tests on [%s]", serial);
+    RemoteAndroidTestRunner runner = createTestRunner(device);
+    runner.setLogOnly(true);
+    SpoonTestCollector collector = new SpoonTestCollector(debug, testIdentifierAdapter);
+    runner.run(collector);
+    return collector.getTests();
   }
 
   /** Execute instrumentation on the target device and return a result summary. */
   public DeviceResult run(AndroidDebugBridge adb) {
     String appPackage = instrumentationInfo.getApplicationPackage();
-    String testPackage = instrumentationInfo.getInstrumentationPackage();
     String testRunner = instrumentationInfo.getTestRunnerClass();
     TestIdentifierAdapter testIdentifierAdapter = TestIdentifierAdapter.fromTestRunner(testRunner);
 
@@ -163,6 +432,10 @@ public final class SpoonDeviceRunner {
     DeviceResult.Builder result = new DeviceResult.Builder();
 
     IDevice device = obtainRealDevice(adb, serial);
+    if (tests != null && tests.isEmpty()) {
+      logInfo("[%s] No tests assigned to this device.", serial);
+      return result.setDeviceDetails(DeviceDetails.createForDevice(device)).build();
+    }
     logDebug(debug, "Got realDevice for [%s]", serial);
 
     // Get relevant device information.
@@ -182,15 +455,9 @@ public final class SpoonDeviceRunner {
       }
       // Now install the main application and the instrumentation application.
       if(!noInstall){
-        String installError = device.installPackage(apk.getAbsolutePath(), true);
+        String installError = installApks(device);
         if (installError != null) {
-          logInfo("[%s] app apk install failed.  Error [%s]", serial, installError);
-          return result.markInstallAsFailed("Unable to install application APK.").build();
-        }
-        installError = device.installPackage(testApk.getAbsolutePath(), true);
-        if (installError != null) {
-          logInfo("[%s] test apk install failed.  Error [%s]", serial, installError);
-          return result.markInstallAsFailed("Unable to install instrumentation APK.").build();
+          return result.markInstallAsFailed(installError).build();
         }
       }
     } catch (InstallException e) {
@@ -203,121 +470,160 @@ public final class SpoonDeviceRunner {
     work.mkdirs();
 
     // Initiate device logging.
-    SpoonDeviceLogger deviceLogger = new SpoonDeviceLogger(device, filterTags);
+    SpoonDeviceLogger deviceLogger = new SpoonDeviceLogger(device, logFilter, binaryLogcat,
+        logLimits, new File(work, LOGCAT_DIR));
+
+    // Screenshots are pulled in the background as each test ends.
+    SpoonScreenshotPuller screenshotPuller = new SpoonScreenshotPuller(device,
+        screenshotDevicePath(), imageDir, !noAnimations, debug, testIdentifierAdapter);
 
     // Run all the tests! o/
+    SpoonEventLog events = new SpoonEventLog(eventLog, eventsToStdout, serial, parent);
     try {
       logDebug(debug, "About to actually run tests for [%s]", serial);
-      RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(testPackage, testRunner, device);
-      if(!Strings.isNullOrEmpty(subpackageName))
-        runner.setTestPackageName(subpackageName);
-      runner.setMaxtimeToOutputResponse(adbTimeout);
-      if (!Strings.isNullOrEmpty(className)) {
-        if (Strings.isNullOrEmpty(methodName)) {
-          runner.setClassName(className);
-        } else {
-          runner.setMethodName(className, methodName);
-        }
+      if (queue != null) {
+        runQueuedClasses(device, result, testIdentifierAdapter, events, screenshotPuller);
+      } else if (tests != null) {
+        runTestBatches(device, testNameBatches(tests, MAX_TEST_NAMES_LENGTH), result,
+            testIdentifierAdapter, events, screenshotPuller);
+      } else {
+        RemoteAndroidTestRunner runner = createTestRunner(device);
+        runner.run(
+            new SpoonTestRunListener(result, debug, testIdentifierAdapter, true, events),
+            new XmlTestRunListener(junitReport),
+            screenshotPuller
+        );
+      }
+    } catch (Exception e) {
+      result.addException(e);
+    } finally {
+      events.close();
+    }
+
+    attachLogs(result, deviceLogger, runId);
+
+    attachScreenshots(result, screenshotPuller);
+
+    DeviceResult deviceResult = result.build();
+    for (int attempt = 1; attempt <= retryFailed; attempt++) {
+      List<DeviceTest> failed = getFailedTests(deviceResult);
+      if (failed.isEmpty()) {
+        break;
       }
-      if (testSize != null) {
-        runner.setTestSize(testSize);
+      logInfo("[%s] Retrying %d failed test(s), attempt %d of %d.", serial, failed.size(),
+          attempt, retryFailed);
+      deviceResult =
+          deviceResult.retry(retryTests(device, failed, attempt, testIdentifierAdapter));
+    }
+    return deviceResult;
+  }
+
+  /** Directory on the device the client writes screenshots to. */
+  private String screenshotDevicePath() {
+    return "/data/data/" + instrumentationInfo.getApplicationPackage() + "/app_"
+        + SPOON_SCREENSHOTS;
+  }
+
+  /** Wait for the screenshots pulled by {@code screenshotPuller} and add them to their tests. */
+  private void attachScreenshots(DeviceResult.Builder result,
+      SpoonScreenshotPuller screenshotPuller) {
+    try {
+      logDebug(debug, "Waiting for screenshots of [%s]", serial);
+      screenshotPuller.awaitPulls();
+      Map<DeviceTest, File> animatedGifs = screenshotPuller.getAnimatedGifs();
+      for (Map.Entry<DeviceTest, List<File>> entry
+          : screenshotPuller.getScreenshots().entrySet()) {
+        DeviceTest test = entry.getKey();
+        DeviceTestResult.Builder builder = result.getMethodResultBuilder(test);
+        if (builder == null) {
+          logError("Unable to find test for %s", test);
+          continue;
+        }
+        for (File screenshot : entry.getValue()) {
+          builder.addScreenshot(screenshot);
+        }
+        File animatedGif = animatedGifs.get(test);
+        if (animatedGif != null) {
+          builder.setAnimatedGif(animatedGif);
+        }
       }
-      runner.run(
-          new SpoonTestRunListener(result, debug, testIdentifierAdapter),
-          new XmlTestRunListener(junitReport)
-      );
     } catch (Exception e) {
       result.addException(e);
     }
+  }
 
-    // Grab all the parsed logs and map them to individual tests.
+  /** Grab all the parsed logs and map them, along with the run id, to individual tests. */
+  private static void attachLogs(DeviceResult.Builder result, SpoonDeviceLogger deviceLogger,
+      String runId) {
     Map<DeviceTest, List<LogCatMessage>> logs = deviceLogger.getParsedLogs();
+    Map<DeviceTest, Integer> droppedLines = deviceLogger.getDroppedLines();
     for (Map.Entry<DeviceTest, List<LogCatMessage>> entry : logs.entrySet()) {
       DeviceTestResult.Builder builder = result.getMethodResultBuilder(entry.getKey());
       if (builder != null) {
         builder.setLog(entry.getValue());
+        Integer dropped = droppedLines.get(entry.getKey());
+        if (dropped != null) {
+          builder.setDroppedLogLines(dropped);
+        }
+        builder.setRunId(runId);
       }
     }
-    
-    // Add the id to each test
-    for (Map.Entry<DeviceTest, List<LogCatMessage>> entry : logs.entrySet()) {
-       DeviceTestResult.Builder builder = result.getMethodResultBuilder(entry.getKey());
-       if (builder != null) {
-          ArrayList<String> ids = new ArrayList<String>();
-          ids.add(runId);
-          builder.setRunIds(ids);
-       }
-     } 
-
-    
-    
-    try {
-      logDebug(debug, "About to grab screenshots and prepare output for [%s]", serial);
-
-      // Sync device screenshots, if any, to the local filesystem.
-      String dirName = "app_" + SPOON_SCREENSHOTS;
-      String localDirName = work.getAbsolutePath();
-      final String devicePath = "/data/data/" + appPackage + "/" + dirName;
-      FileEntry deviceDir = obtainDirectoryFileEntry(devicePath);
-      logDebug(debug, "Pulling screenshots from [%s] %s", serial, devicePath);
-
-      device.getSyncService()
-          .pull(new FileEntry[] {deviceDir}, localDirName, SyncService.getNullProgressMonitor());
-
-      File screenshotDir = new File(work, dirName);
-      if (screenshotDir.exists()) {
-        imageDir.mkdirs();
-
-        // Move all children of the screenshot directory into the image folder.
-        File[] classNameDirs = screenshotDir.listFiles();
-        if (classNameDirs != null) {
-          Multimap<DeviceTest, File> testScreenshots = ArrayListMultimap.create();
-          for (File classNameDir : classNameDirs) {
-            String className = classNameDir.getName();
-            File destDir = new File(imageDir, className);
-            FileUtils.copyDirectory(classNameDir, destDir);
-
-            // Get a sorted list of all screenshots from the device run.
-            List<File> screenshots = new ArrayList<File>(
-                FileUtils.listFiles(destDir, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE));
-            Collections.sort(screenshots);
-
-            // Iterate over each screenshot and associate it with its corresponding method result.
-            for (File screenshot : screenshots) {
-              String methodName = screenshot.getParentFile().getName();
-
-              DeviceTest testIdentifier = new DeviceTest(className, methodName);
-              DeviceTestResult.Builder builder = result.getMethodResultBuilder(testIdentifier);
-              if (builder != null) {
-                builder.addScreenshot(screenshot);
-                testScreenshots.put(testIdentifier, screenshot);
-              } else {
-                logError("Unable to find test for %s", testIdentifier);
-              }
-            }
-          }
+  }
 
-          // Don't generate animations if the switch is present
-          if (!noAnimations) {
-            // Make animated GIFs for all the tests which have screenshots.
-            for (DeviceTest deviceTest : testScreenshots.keySet()) {
-              List<File> screenshots = new ArrayList<File>(testScreenshots.get(deviceTest));
-              if (screenshots.size() == 1) {
-                continue; // Do not make an animated GIF if there is only one screenshot.
-              }
-              File animatedGif = FileUtils.getFile(imageDir, deviceTest.getClassName(),
-                  deviceTest.getMethodName() + ".gif");
-              createAnimatedGif(screenshots, animatedGif);
-              result.getMethodResultBuilder(deviceTest).setAnimatedGif(animatedGif);
-            }
-          }
-        }
-        FileUtils.deleteDirectory(screenshotDir);
+  /** Tests whose most recent attempt did not pass. */
+  static List<DeviceTest> getFailedTests(DeviceResult result) {
+    List<DeviceTest> failed = new ArrayList<DeviceTest>();
+    for (Map.Entry<DeviceTest, DeviceTestResult> entry : result.getTestResults().entrySet()) {
+      if (entry.getValue().getFinalStatus() != DeviceTestResult.Status.PASS) {
+        failed.add(entry.getKey());
+      }
+    }
+    return failed;
+  }
+
+  /**
+   * Run each of {@code failed} again on its own. The result only holds these tests so it can be
+   * merged into the result of the previous attempts.
+   * <p>
+   * Screenshots of the attempt are pulled next to those of the first run, to
+   * {@code image/<serial>-retry-<attempt>}. Each test gets a JUnit report of its own in
+   * {@code junit-reports/<serial>-retry-<attempt>}. The report of the first run is left as it was
+   * written, so tools reading every report see both the failure and the retry.
+   */
+  private DeviceResult retryTests(IDevice device, List<DeviceTest> failed, int attempt,
+      TestIdentifierAdapter testIdentifierAdapter) {
+    DeviceResult.Builder result = new DeviceResult.Builder();
+    String suffix = "-retry-" + attempt;
+    SpoonDeviceLogger deviceLogger = new SpoonDeviceLogger(device, logFilter, binaryLogcat,
+        logLimits, new File(work, LOGCAT_DIR + suffix));
+    SpoonScreenshotPuller screenshotPuller = new SpoonScreenshotPuller(device,
+        screenshotDevicePath(), new File(imageDir.getPath() + suffix), !noAnimations, debug,
+        testIdentifierAdapter);
+    File reportDir = new File(junitReport.getParentFile(), serial + suffix);
+    SpoonEventLog events = new SpoonEventLog(eventLog, eventsToStdout, serial, parent);
+    result.startTests();
+    try {
+      for (DeviceTest test : failed) {
+        RemoteAndroidTestRunner runner = new RemoteAndroidTestRunner(
+            instrumentationInfo.getInstrumentationPackage(),
+            instrumentationInfo.getTestRunnerClass(), device);
+        runner.setMaxtimeToOutputResponse(adbTimeout);
+        runner.setMethodName(test.getClassName(), test.getMethodName());
+        File testReport = new File(reportDir,
+            test.getClassName() + "#" + test.getMethodName() + ".xml");
+        runner.run(new SpoonTestRunListener(result, debug, testIdentifierAdapter, false, events),
+            new XmlTestRunListener(testReport),
+            screenshotPuller);
       }
     } catch (Exception e) {
       result.addException(e);
+    } finally {
+      events.close();
+      result.endTests();
     }
-
+    String attemptId = (runId != null ? runId + "-" : "") + "retry-" + attempt;
+    attachLogs(result, deviceLogger, attemptId);
+    attachScreenshots(result, screenshotPuller);
     return result.build();
   }
 
@@ -325,12 +631,17 @@ public final class SpoonDeviceRunner {
   ////  Secondary Per-Device Process  /////////////////////////////////////////
   /////////////////////////////////////////////////////////////////////////////
 
-  /** De-serialize from disk, run the tests, and serialize the result back to disk. */
+  /**
+   * De-serialize from disk, run the tests, and send the result back to the parent. Standard out
+   * carries {@link FramedChannel} frames, so everything else printed is sent as output frames.
+   */
   public static void main(String... args) {
     if (args.length != 1) {
       throw new IllegalArgumentException("Must be started with a device directory.");
     }
 
+    FramedChannel parent = new FramedChannel(null, new FileOutputStream(FileDescriptor.out));
+    System.setOut(new PrintStream(new FramedLineOutputStream(parent, null), true));
     try {
       String outputDirName = args[0];
       File outputDir = new File(outputDirName);
@@ -342,18 +653,19 @@ public final class SpoonDeviceRunner {
       FileReader reader = new FileReader(executionFile);
       SpoonDeviceRunner target = GSON.fromJson(reader, SpoonDeviceRunner.class);
       reader.close();
+      target.parent = parent;
 
       AndroidDebugBridge adb = SpoonUtils.initAdb(target.sdk);
       DeviceResult result = target.run(adb);
       AndroidDebugBridge.terminate();
 
-      // Write device result file.
-      FileWriter writer = new FileWriter(new File(outputDir, FILE_RESULT));
-      GSON.toJson(result, writer);
-      writer.close();
+      System.out.flush();
+      parent.send(FramedChannel.Type.RESULT, GSON.toJson(result));
+      parent.close();
     } catch (Throwable ex) {
       logInfo("ERROR: Unable to execute test for target.  Exception message: %s", ex.getMessage());
       ex.printStackTrace(System.out);
+      System.out.flush();
       System.exit(1);
     }
   }
@@ -0,0 +1,106 @@
+package com.squareup.spoon;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+
+import org.apache.commons.io.IOUtils;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.SpoonLogger.logError;
+
+/**
+ * Streams per-test events for one device as newline-delimited JSON while the run is in progress.
+ * Every event is a single line written with one append so that devices sharing the file, even
+ * from other processes, never interleave partial lines.
+ */
+final class SpoonEventLog implements Closeable {
+  static final String FILE_EVENTS = "events.ndjson";
+
+  private final File file;
+  private final boolean stdout;
+  private final String serial;
+  private final FramedChannel parent;
+  private OutputStream out;
+
+  SpoonEventLog(File file, boolean stdout, String serial) {
+    this(file, stdout, serial, null);
+  }
+
+  /**
+   * @param file File to append events to.
+   * @param stdout Whether events are also printed to standard out. Events sent to a parent are
+   *     printed by the parent, whose standard out is the console.
+   * @param serial Device the events belong to.
+   * @param parent Channel to the parent runner which also receives events, or {@code null}.
+   */
+  SpoonEventLog(File file, boolean stdout, String serial, FramedChannel parent) {
+    this.file = checkNotNull(file);
+    this.stdout = stdout;
+    this.serial = checkNotNull(serial);
+    this.parent = parent;
+  }
+
+  void testStarted(DeviceTest test) {
+    emit("testStarted", test, null, null);
+  }
+
+  void testFailed(DeviceTest test, String trace) {
+    emit("testFailed", test, null, trace);
+  }
+
+  void testEnded(DeviceTest test, DeviceTestResult.Status status) {
+    emit("testEnded", test, status, null);
+  }
+
+  private void emit(String event, DeviceTest test, DeviceTestResult.Status status, String trace) {
+    StringWriter line = new StringWriter();
+    try {
+      JsonWriter json = new JsonWriter(line);
+      json.beginObject();
+      json.name("event").value(event);
+      json.name("serial").value(serial);
+      json.name("className").value(test.getClassName());
+      json.name("methodName").value(test.getMethodName());
+      json.name("timestamp").value(System.currentTimeMillis());
+      if (status != null) {
+        json.name("status").value(status.name());
+      }
+      if (trace != null) {
+        json.name("trace").value(trace);
+      }
+      json.endObject();
+      json.close();
+      line.write('\n');
+      write(line.toString().getBytes(UTF_8));
+      if (parent != null) {
+        parent.send(FramedChannel.Type.EVENT, line.toString().trim());
+      }
+    } catch (IOException e) {
+      // Events are best-effort and must never fail the run.
+      logError("[%s] Unable to write event to %s: %s", serial, file, e.getMessage());
+    }
+    if (stdout && parent == null) {
+      System.out.print(line);
+    }
+  }
+
+  private synchronized void write(byte[] bytes) throws IOException {
+    if (out == null) {
+      file.getParentFile().mkdirs();
+      out = new FileOutputStream(file, true);
+    }
+    // Unbuffered, so every event reaches the file as soon as it happens.
+    out.write(bytes);
+  }
+
+  @Override public synchronized void close() {
+    IOUtils.closeQuietly(out);
+    out = null;
+  }
+}
@@ -1,19 +1,30 @@
 package com.squareup.spoon;
 
 import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 import com.beust.jcommander.IStringConverter;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.squareup.spoon.html.HtmlRenderer;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FileUtils;
 
@@ -22,14 +33,15 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.squareup.spoon.DeviceTestResult.Status;
 import static com.squareup.spoon.SpoonInstrumentationInfo.parseFromFile;
 import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logError;
 import static com.squareup.spoon.SpoonLogger.logInfo;
-import static java.util.Collections.synchronizedSet;
 
 /** Represents a collection of devices and the test configuration to be executed. */
 public final class SpoonRunner {
   private static final String DEFAULT_TITLE = "Spoon Execution";
   public static final String DEFAULT_OUTPUT_DIRECTORY = "spoon-output";
   private static final int DEFAULT_ADB_TIMEOUT = 10 * 60; //10 minutes
+  private static final int DEFAULT_DEVICE_TIMEOUT = 30; //30 seconds
 
   private final String title;
   private final File androidSdk;
@@ -43,18 +55,39 @@ public final class SpoonRunner {
   private final String className;
   private final String methodName;
   private final boolean noInstall;
-  private List<String> filterTags = null;
+  private final LogFilter logFilter;
   private final Set<String> serials;
   private final String classpath;
   private final String runId;
   private final IRemoteAndroidTestRunner.TestSize testSize;
   private final boolean failIfNoDeviceConnected;
+  private final int maxConcurrentDevices;
+  private final ExecutorService deviceExecutor;
+  private final boolean isolateDevices;
+  private final boolean shard;
+  private final List<File> shardHistory;
+  private final boolean queueTests;
+  private final boolean eventsToStdout;
+  private final boolean liveReport;
+  private final int retryFailed;
+  private final int expectedDevices;
+  private final int deviceTimeout;
+  private final ChildJvm childJvm;
+  /** Device the APKs were installed on to list the tests, so its run skips installing them. */
+  private volatile String installedSerial;
+  private final boolean binaryLogcat;
+  private final LogLimits logLimits;
 
   private SpoonRunner(String title, File androidSdk, File applicationApk, File instrumentationApk,
       File output, boolean debug, boolean noAnimations, int adbTimeout, Set<String> serials,
       String classpath, String subpackageName, String className, String methodName,
       IRemoteAndroidTestRunner.TestSize testSize, boolean noInstall, boolean failIfNoDeviceConnected,
-      String filterLog, String runId) {
+      String filterLog, String runId, int maxConcurrentDevices, ExecutorService deviceExecutor,
+      boolean isolateDevices, boolean shard, List<File> shardHistory, boolean queueTests,
+      boolean eventsToStdout, boolean liveReport, int retryFailed, int expectedDevices,
+      int deviceTimeout, List<String> childJvmOptions, File classDataArchive,
+      LogLevel filterLogLevel, List<String> filterLogPids, boolean filterLogOnDevice,
+      boolean binaryLogcat, LogLimits logLimits) {
     this.title = title;
     this.androidSdk = androidSdk;
     this.applicationApk = applicationApk;
@@ -72,12 +105,22 @@ public final class SpoonRunner {
     this.runId = runId;
     this.serials = ImmutableSet.copyOf(serials);
     this.failIfNoDeviceConnected = failIfNoDeviceConnected;
-
-    if(filterLog != null){
-      this.filterTags = new LinkedList();
-      this.filterTags.addAll(Arrays.asList(filterLog.split("&")));
-    }
-    
+    this.maxConcurrentDevices = maxConcurrentDevices;
+    this.deviceExecutor = deviceExecutor;
+    this.isolateDevices = isolateDevices;
+    this.shard = shard;
+    this.shardHistory = ImmutableList.copyOf(shardHistory);
+    this.queueTests = queueTests;
+    this.eventsToStdout = eventsToStdout;
+    this.liveReport = liveReport;
+    this.retryFailed = retryFailed;
+    this.expectedDevices = expectedDevices;
+    this.deviceTimeout = deviceTimeout;
+    this.childJvm = new ChildJvm(childJvmOptions, classDataArchive, debug);
+    this.logFilter = LogFilter.parse(filterLog, filterLogLevel, filterLogPids,
+        filterLogOnDevice);
+    this.binaryLogcat = binaryLogcat;
+    this.logLimits = logLimits;
   }
 
   /**
@@ -92,29 +135,56 @@ public final class SpoonRunner {
     AndroidDebugBridge adb = SpoonUtils.initAdb(androidSdk);
 
     try {
-      // If we were given an empty serial set, load all available devices.
-      Set<String> serials = this.serials;
-      if (serials.isEmpty()) {
-        serials = SpoonUtils.findAllDevices(adb);
-      }
-      if (failIfNoDeviceConnected && serials.isEmpty()) {
-        throw new RuntimeException("No device(s) found.");
-      }
-
-      // Execute all the things...
-      SpoonSummary summary = runTests(adb, serials);
-      // ...and render to HTML
-      new HtmlRenderer(summary, SpoonUtils.GSON, output, parsedArgs.noresultjson, parsedArgs.nohtml).render();
-      return parseOverallSuccess(summary);
+      return run(adb, parsedArgs);
     } finally {
     	logDebug(true,"HHERE3");
       AndroidDebugBridge.terminate();
     }
   }
 
-  private SpoonSummary runTests(AndroidDebugBridge adb, Set<String> serials) {
+  /**
+   * Install and execute the tests using an already connected bridge, which is left open.
+   *
+   * @return {@code true} if there were no test failures or exceptions thrown.
+   */
+  boolean run(AndroidDebugBridge adb, CommandLineArgs parsedArgs) {
+    checkArgument(applicationApk.exists(), "Could not find application APK.");
+    checkArgument(instrumentationApk.exists(), "Could not find instrumentation APK.");
+
+    // If we were given an empty serial set, load all available devices.
+    Set<String> serials = this.serials;
+    if (serials.isEmpty()) {
+      serials = SpoonUtils.findAllDevices(adb, expectedDevices, deviceTimeout);
+    }
+    if (failIfNoDeviceConnected && serials.isEmpty()) {
+      throw new RuntimeException("No device(s) found.");
+    }
+
+    // Execute all the things...
+    SpoonSummary summary = runTests(adb, serials);
+    // ...and render to HTML
+    new HtmlRenderer(summary, SpoonUtils.GSON, output, parsedArgs.noresultjson, parsedArgs.nohtml,
+        parsedArgs.archiveLogs).render();
+
+    if (!debug) {
+      // Clean up anything in the work directory, once the logs stored there have been rendered.
+      try {
+        FileUtils.deleteDirectory(new File(output, SpoonDeviceRunner.TEMP_DIR));
+      } catch (IOException ignored) {
+      }
+    }
+    return parseOverallSuccess(summary);
+  }
+
+  private SpoonSummary runTests(final AndroidDebugBridge adb, Set<String> serials) {
     int targetCount = serials.size();
-    logInfo("Executing instrumentation suite on %d device(s).", targetCount);
+    if (shard) {
+      logInfo("Executing instrumentation suite in %d shard(s), one per device.", targetCount);
+    } else if (queueTests) {
+      logInfo("Executing instrumentation suite from a shared queue on %d device(s).", targetCount);
+    } else {
+      logInfo("Executing instrumentation suite on %d device(s).", targetCount);
+    }
 
     try {
       FileUtils.deleteDirectory(output);
@@ -134,13 +204,49 @@ public final class SpoonRunner {
       summary.setTestSize(testSize);
     }
 
-    if (targetCount == 1) {
+    SpoonTestQueue queue = null;
+    // Without a device there is nothing to list the tests on, and the report stays empty.
+    if (queueTests && !serials.isEmpty()) {
+      queue = createTestQueue(adb, serials.iterator().next(), testInfo);
+    }
+
+    LiveReport live = null;
+    if (liveReport) {
+      live = new LiveReport(summary, output, targetCount);
+      live.start();
+    }
+
+    try {
+      executeOnDevices(adb, serials, testInfo, summary, queue, live);
+    } finally {
+      if (live != null) {
+        live.stop();
+      }
+    }
+
+    return summary.end().build();
+  }
+
+  /**
+   * Run every device and add its result to {@code summary} as it completes, notifying
+   * {@code live} (if set) after each one.
+   */
+  private void executeOnDevices(final AndroidDebugBridge adb, Set<String> serials,
+      final SpoonInstrumentationInfo testInfo, final SpoonSummary.Builder summary,
+      SpoonTestQueue queue, final LiveReport live) {
+    int targetCount = serials.size();
+    if (targetCount == 0) {
+      // Nothing to run, the summary stays empty.
+      logInfo("No devices to execute on.");
+      return;
+    }
+    if (targetCount == 1 && queue == null) {
       // Since there is only one device just execute it synchronously in this process.
       String serial = serials.iterator().next();
       String safeSerial = SpoonUtils.sanitizeSerial(serial);
       try {
         logDebug(debug, "[%s] Starting execution.", serial);
-        summary.addResult(safeSerial, getTestRunner(serial, testInfo).run(adb));
+        summary.addResult(safeSerial, getTestRunner(serial, 0, 0, null, queue, testInfo).run(adb));
       } catch (Exception e) {
         logDebug(debug, "[%s] Execution exception!", serial);
         e.printStackTrace(System.out);
@@ -149,44 +255,256 @@ public final class SpoonRunner {
         logDebug(debug, "[%s] Execution done.", serial);
       }
     } else {
-      // Spawn a new thread for each device and wait for them all to finish.
-      final CountDownLatch done = new CountDownLatch(targetCount);
-      final Set<String> remaining = synchronizedSet(new HashSet<String>(serials));
-      for (final String serial : serials) {
-        final String safeSerial = SpoonUtils.sanitizeSerial(serial);
-        logDebug(debug, "[%s] Starting execution.", serial);
-        new Thread(new Runnable() {
-          @Override public void run() {
-            try {
-              summary.addResult(safeSerial, getTestRunner(serial, testInfo).runInNewProcess());
-            } catch (Exception e) {
-              summary.addResult(safeSerial, new DeviceResult.Builder().addException(e).build());
-            } finally {
-              done.countDown();
-              remaining.remove(serial);
-              logDebug(debug, "[%s] Execution done. (%s remaining %s)", serial, done.getCount(),
-                  remaining);
-            }
-          }
-        }).start();
+      // Hand each device to the worker pool and wait for them all to finish. Results are added to
+      // the summary as soon as the corresponding device completes. Unless isolation was requested
+      // every device shares this process and its bridge. Queued and sharded runs also take on
+      // devices which come online while they execute.
+      boolean hotPlug = queue != null || shard;
+      ExecutorService executor = deviceExecutor;
+      if (executor == null) {
+        executor = createDeviceExecutor(targetCount, hotPlug);
       }
-
+      int numShards = shard ? targetCount : 0;
+      List<List<DeviceTest>> shards = null;
+      if (shard && !shardHistory.isEmpty() && !serials.isEmpty()) {
+        shards = balanceShards(adb, serials.iterator().next(), targetCount, testInfo);
+      }
+      DeviceScheduler scheduler =
+          new DeviceScheduler(adb, executor, testInfo, summary, queue, live, numShards);
       try {
-        done.await();
+        if (hotPlug) {
+          scheduler.watch();
+        }
+        int index = 0;
+        for (String serial : serials) {
+          int shardIndex = index++;
+          logDebug(debug, "[%s] Queued for execution.", serial);
+          scheduler.start(serial, shardIndex, shards != null ? shards.get(shardIndex) : null);
+        }
+        if (hotPlug) {
+          scheduler.listen();
+        }
+        scheduler.awaitAll();
       } catch (InterruptedException e) {
         throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      } finally {
+        scheduler.stopWatching();
+        if (executor != deviceExecutor) {
+          executor.shutdownNow();
+        }
       }
     }
+  }
 
-    if (!debug) {
-      // Clean up anything in the work directory.
-      try {
-        FileUtils.deleteDirectory(new File(output, SpoonDeviceRunner.TEMP_DIR));
-      } catch (IOException ignored) {
+  /**
+   * Runs devices on the worker pool. When watching the bridge, devices which come online during
+   * the run are put to work on whatever is left: classes remaining in the queue, or the shards of
+   * devices which went away before finishing them.
+   */
+  private final class DeviceScheduler implements DeviceWatcher.Listener {
+    private final AndroidDebugBridge adb;
+    private final CompletionService<String> completion;
+    private final SpoonInstrumentationInfo testInfo;
+    private final SpoonSummary.Builder summary;
+    private final SpoonTestQueue queue;
+    private final LiveReport live;
+    private final int numShards;
+    private final Set<String> running = new LinkedHashSet<String>();
+    private final Map<String, Integer> executions = new HashMap<String, Integer>();
+    private final Queue<Shard> orphanedShards = new LinkedList<Shard>();
+    /** Results of devices which went away and whose work was given to other devices. */
+    private final List<String> supersededResults = new ArrayList<String>();
+    private DeviceWatcher watcher;
+    private int submitted;
+    private int completed;
+    private boolean closed;
+
+    DeviceScheduler(AndroidDebugBridge adb, ExecutorService executor,
+        SpoonInstrumentationInfo testInfo, SpoonSummary.Builder summary, SpoonTestQueue queue,
+        LiveReport live, int numShards) {
+      this.adb = adb;
+      this.completion = new ExecutorCompletionService<String>(executor);
+      this.testInfo = testInfo;
+      this.summary = summary;
+      this.queue = queue;
+      this.live = live;
+      this.numShards = numShards;
+    }
+
+    /** Start tracking which devices are online. */
+    void watch() {
+      watcher = DeviceWatcher.start(adb);
+    }
+
+    /**
+     * Put devices which come online to work. Called once the initial devices were started, so
+     * that none of them is also started by an event; idle devices which came online before are
+     * dispatched right away.
+     */
+    void listen() {
+      watcher.setListener(this);
+      for (String serial : watcher.getOnlineDevices()) {
+        dispatch(serial);
       }
     }
 
-    return summary.end().build();
+    void stopWatching() {
+      if (watcher != null) {
+        watcher.stop();
+      }
+    }
+
+    @Override public void deviceOnline(String serial) {
+      logInfo("[%s] Device came online.", serial);
+      dispatch(serial);
+    }
+
+    /** Give {@code serial} the next piece of remaining work, if it is idle and there is any. */
+    private synchronized void dispatch(String serial) {
+      if (closed || running.contains(serial)) {
+        return;
+      }
+      Shard orphan = orphanedShards.poll();
+      if (orphan != null) {
+        logInfo("[%s] Taking over shard %d.", serial, orphan.index);
+        supersededResults.add(orphan.resultKey);
+        start(serial, orphan.index, orphan.tests);
+      } else if (queue != null && queue.size() > 0) {
+        logInfo("[%s] Joining the run, %d classes left in queue.", serial, queue.size());
+        start(serial, 0, null);
+      }
+    }
+
+    synchronized void start(final String serial, final int shardIndex,
+        final List<DeviceTest> shardTests) {
+      if (!running.add(serial)) {
+        logDebug(debug, "[%s] Already executing.", serial);
+        return;
+      }
+      submitted++;
+      // A device which executes more than once, e.g. after reconnecting, gets one result each.
+      Integer previous = executions.get(serial);
+      int execution = previous == null ? 1 : previous + 1;
+      executions.put(serial, execution);
+      String safeSerial = SpoonUtils.sanitizeSerial(serial);
+      final String resultKey = execution == 1 ? safeSerial : safeSerial + "_" + execution;
+
+      completion.submit(new Runnable() {
+        @Override public void run() {
+          logDebug(debug, "[%s] Starting execution.", serial);
+          DeviceResult result = null;
+          try {
+            SpoonDeviceRunner runner =
+                getTestRunner(serial, numShards, shardIndex, shardTests, queue, testInfo);
+            result = isolateDevices ? runner.runInNewProcess() : runner.run(adb);
+          } catch (Exception e) {
+            result = new DeviceResult.Builder().addException(e).build();
+          } finally {
+            if (result != null) {
+              summary.addResult(resultKey, result);
+            }
+            if (live != null) {
+              live.deviceFinished();
+            }
+            finished(serial, resultKey, result, shardIndex, shardTests);
+          }
+        }
+      }, serial);
+    }
+
+    private synchronized void finished(String serial, String resultKey, DeviceResult result,
+        int shardIndex, List<DeviceTest> shardTests) {
+      running.remove(serial);
+      logDebug(debug, "[%s] Execution done. (%s remaining %s)", serial, running.size(), running);
+      if (watcher == null) {
+        return;
+      }
+      Set<String> online = watcher.getOnlineDevices();
+      if (numShards > 0 && !online.contains(serial)) {
+        logInfo("[%s] Device went away, shard %d will move to the next free device.", serial,
+            shardIndex);
+        orphanedShards.add(new Shard(shardIndex, shardTests, resultKey));
+      } else if (queue != null && !online.contains(serial) && result != null
+          && result.getTestResults().isEmpty()) {
+        // Its class went back to the queue, so its result holds nothing but the disconnection.
+        supersededResults.add(resultKey);
+      }
+      // Idle devices pick up anything that was returned by a device which went away.
+      for (String idle : online) {
+        dispatch(idle);
+      }
+    }
+
+    /** Wait for every execution, including those started while waiting. */
+    void awaitAll() throws InterruptedException, ExecutionException {
+      while (true) {
+        synchronized (this) {
+          if (completed == submitted) {
+            closed = true;
+            break;
+          }
+        }
+        completion.take().get();
+        synchronized (this) {
+          completed++;
+        }
+      }
+      int classesLeft = queue != null ? queue.size() : 0;
+      if (classesLeft > 0 || !orphanedShards.isEmpty()) {
+        logError("No device left to execute %d queued classes and %d shards.", classesLeft,
+            orphanedShards.size());
+      } else {
+        // Everything was executed elsewhere, so the devices which went away did not fail the run.
+        for (String resultKey : supersededResults) {
+          logDebug(debug, "Dropping result %s, its work was executed by another device.",
+              resultKey);
+          summary.removeResult(resultKey);
+        }
+      }
+    }
+  }
+
+  /** A shard which still has to be executed. */
+  private static final class Shard {
+    final int index;
+    final List<DeviceTest> tests;
+    /** Result of the device which went away before finishing this shard. */
+    final String resultKey;
+
+    Shard(int index, List<DeviceTest> tests, String resultKey) {
+      this.index = index;
+      this.tests = tests;
+      this.resultKey = resultKey;
+    }
+  }
+
+  /**
+   * Create the pool which executes devices when no executor was supplied. At most
+   * {@link #maxConcurrentDevices} devices run at the same time, or every device at once if unset.
+   */
+  private ExecutorService createDeviceExecutor(int targetCount, boolean growable) {
+    if (growable && maxConcurrentDevices <= 0) {
+      // Devices may join mid-run, so the pool grows with them.
+      return Executors.newCachedThreadPool(new DeviceThreadFactory());
+    }
+    int threads = targetCount;
+    if (maxConcurrentDevices > 0) {
+      threads = growable ? maxConcurrentDevices : Math.min(maxConcurrentDevices, targetCount);
+    }
+    threads = Math.max(threads, 1);
+    logDebug(debug, "Executing on at most %d device(s) concurrently.", threads);
+    return Executors.newFixedThreadPool(threads, new DeviceThreadFactory());
+  }
+
+  /** Names device worker threads so they are identifiable in thread dumps. */
+  static final class DeviceThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, "spoon-device-" + count.incrementAndGet());
+    }
   }
 
   /** Returns {@code false} if a test failed on any device. */
@@ -200,7 +518,7 @@ public final class SpoonRunner {
       }
       for (DeviceTestResult methodResult : result.getTestResults().values()) {
         if (methodResult.getOverallStatus() != Status.PASS) {
-          return false; // Individual test failure.
+          return false; // Individual test failure, as shown in the report.
         }
       }
     }
@@ -208,10 +526,64 @@ public final class SpoonRunner {
     return true;
   }
 
-  private SpoonDeviceRunner getTestRunner(String serial, SpoonInstrumentationInfo testInfo) {
+  /**
+   * List the suite on {@code serial} and pack it into duration-balanced shards using the shard
+   * history. Returns {@code null} to fall back to instrumentation sharding if listing fails.
+   */
+  private List<List<DeviceTest>> balanceShards(AndroidDebugBridge adb, String serial,
+      int shardCount, SpoonInstrumentationInfo testInfo) {
+    List<DeviceTest> tests;
+    try {
+      tests = getTestRunner(serial, 0, 0, null, null, testInfo).collectTests(adb);
+    } catch (Exception e) {
+      logInfo("[%s] Unable to list tests, falling back to unbalanced shards: %s", serial,
+          e.getMessage());
+      return null;
+    }
+    installedSerial = serial;
+    Map<DeviceTest, Long> durations = ShardBalancer.readDurations(SpoonUtils.GSON, shardHistory);
+    logInfo("Balancing %d test(s) across %d shard(s) with %d known duration(s).", tests.size(),
+        shardCount, durations.size());
+    return ShardBalancer.balance(tests, durations, shardCount);
+  }
+
+  /** List the suite on {@code serial} and put its test classes into a queue shared by devices. */
+  private SpoonTestQueue createTestQueue(AndroidDebugBridge adb, String serial,
+      SpoonInstrumentationInfo testInfo) {
+    List<DeviceTest> tests;
+    try {
+      tests = getTestRunner(serial, 0, 0, null, null, testInfo).collectTests(adb);
+    } catch (Exception e) {
+      throw new RuntimeException("Unable to list tests on " + serial, e);
+    }
+    installedSerial = serial;
+    SpoonTestQueue queue = SpoonTestQueue.fromTests(tests);
+    logInfo("Queued %d test class(es) with %d test(s).", queue.size(), tests.size());
+    return queue;
+  }
+
+  /**
+   * Execute one shard of the suite on a single device using an already connected bridge, leaving
+   * the output directory in place. Used by distributed workers.
+   */
+  DeviceResult runShard(AndroidDebugBridge adb, String serial, int numShards, int shardIndex) {
+    checkArgument(applicationApk.exists(), "Could not find application APK.");
+    checkArgument(instrumentationApk.exists(), "Could not find instrumentation APK.");
+    SpoonInstrumentationInfo testInfo = parseFromFile(instrumentationApk);
+    return getTestRunner(serial, numShards, shardIndex, null, null, testInfo).run(adb);
+  }
+
+  /**
+   * Create the runner for a device. When {@code queue} is set the device pulls test classes from
+   * it, when {@code tests} is set the device executes exactly those tests, otherwise a non-zero
+   * {@code numShards} restricts it to the shard at {@code shardIndex}.
+   */
+  private SpoonDeviceRunner getTestRunner(String serial, int numShards, int shardIndex,
+      List<DeviceTest> tests, SpoonTestQueue queue, SpoonInstrumentationInfo testInfo) {
     return new SpoonDeviceRunner(androidSdk, applicationApk, instrumentationApk, output, serial,
-        debug, noAnimations, adbTimeout, classpath, testInfo, subpackageName, className, methodName, noInstall, 
-        filterTags, testSize, runId);
+        debug, noAnimations, adbTimeout, classpath, testInfo, subpackageName, className, methodName,
+        noInstall || serial.equals(installedSerial), logFilter, testSize, runId, numShards,
+        shardIndex, tests, queue, eventsToStdout, retryFailed, childJvm, binaryLogcat, logLimits);
   }
 
   /** Build a test suite for the specified devices and configuration. */
@@ -231,9 +603,29 @@ public final class SpoonRunner {
     private boolean noAnimations;
     private boolean noInstall;
     private String filterLog;
+    private LogLevel filterLogLevel;
+    private final List<String> filterLogPids = new ArrayList<String>();
+    private boolean filterLogOnDevice;
+    private boolean binaryLogcat;
+    private int logHeadLines;
+    private int logTailLines;
+    private long logMaxBytes;
     private IRemoteAndroidTestRunner.TestSize testSize;
     private int adbTimeout;
     private boolean failIfNoDeviceConnected;
+    private int maxConcurrentDevices;
+    private ExecutorService deviceExecutor;
+    private boolean isolateDevices;
+    private boolean shard;
+    private final List<File> shardHistory = new ArrayList<File>();
+    private boolean queueTests;
+    private boolean eventsToStdout;
+    private boolean liveReport;
+    private int retryFailed;
+    private int expectedDevices;
+    private int deviceTimeout = DEFAULT_DEVICE_TIMEOUT * 1000;
+    private final List<String> childJvmOptions = new ArrayList<String>();
+    private File classDataArchive;
 
     /** Identifying title for this execution. */
     public Builder setTitle(String title) {
@@ -363,6 +755,175 @@ public final class SpoonRunner {
       return this;
     }
 
+    /** Drop logcat messages below {@code level}, except those marking test boundaries. */
+    public Builder setFilterLogLevel(LogLevel level) {
+      this.filterLogLevel = level;
+      return this;
+    }
+
+    /** Only keep logcat messages of this process. Can be called for multiple processes. */
+    public Builder addFilterLogPid(String pid) {
+      checkNotNull(pid, "PID cannot be null.");
+      filterLogPids.add(pid);
+      return this;
+    }
+
+    /**
+     * Also drop logcat messages of other tags on the device, so they are never transferred.
+     * Messages logged with several {@code &}-separated tags are then only kept when the whole tag
+     * is a filter tag.
+     */
+    public Builder setFilterLogOnDevice(boolean filterLogOnDevice) {
+      this.filterLogOnDevice = filterLogOnDevice;
+      return this;
+    }
+
+    /** Read logcat in its binary format, which is cheaper to decode than its text output. */
+    public Builder setBinaryLogcat(boolean binaryLogcat) {
+      this.binaryLogcat = binaryLogcat;
+      return this;
+    }
+
+    /**
+     * Keep only the first {@code lines} messages of the log of each test, plus the tail set with
+     * {@link #setLogTailLines}. {@code 0} keeps no head once any line limit is set.
+     */
+    public Builder setLogHeadLines(int lines) {
+      checkArgument(lines >= 0, "Log head lines cannot be negative.");
+      this.logHeadLines = lines;
+      return this;
+    }
+
+    /** Keep only the last {@code lines} messages of the log of each test, plus the head. */
+    public Builder setLogTailLines(int lines) {
+      checkArgument(lines >= 0, "Log tail lines cannot be negative.");
+      this.logTailLines = lines;
+      return this;
+    }
+
+    /** Most bytes of messages kept in each of the head and the tail, or {@code 0} for no limit. */
+    public Builder setLogMaxBytes(long bytes) {
+      checkArgument(bytes >= 0, "Log max bytes cannot be negative.");
+      this.logMaxBytes = bytes;
+      return this;
+    }
+
+    /** Maximum number of devices executing at the same time, or {@code 0} for no limit. */
+    public Builder setMaxConcurrentDevices(int maxConcurrentDevices) {
+      checkArgument(maxConcurrentDevices >= 0, "Max concurrent devices cannot be negative.");
+      this.maxConcurrentDevices = maxConcurrentDevices;
+      return this;
+    }
+
+    /**
+     * Executor on which devices are run when executing on more than one device. Any
+     * {@link ExecutorService} works, e.g. a virtual thread per task executor on newer JDKs. The
+     * executor is not shut down by the runner. Overrides {@link #setMaxConcurrentDevices(int)}.
+     */
+    public Builder setDeviceExecutor(ExecutorService deviceExecutor) {
+      checkNotNull(deviceExecutor, "Device executor cannot be null.");
+      this.deviceExecutor = deviceExecutor;
+      return this;
+    }
+
+    /**
+     * Whether each device executes in its own JVM process with its own ADB connection. By default
+     * all devices run in this process against a single shared bridge.
+     */
+    public Builder setIsolateDevices(boolean isolateDevices) {
+      this.isolateDevices = isolateDevices;
+      return this;
+    }
+
+    /**
+     * Whether to split the suite into one shard per device instead of running every test on every
+     * device. Requires an instrumentation runner supporting {@code numShards} and
+     * {@code shardIndex}, such as {@code AndroidJUnitRunner}.
+     */
+    public Builder setShard(boolean shard) {
+      this.shard = shard;
+      return this;
+    }
+
+    /**
+     * Add a {@code result.json} from a previous run whose test durations are used to balance the
+     * shards by expected time rather than by test count.
+     */
+    public Builder addShardHistory(File resultJson) {
+      checkNotNull(resultJson, "Shard history cannot be null.");
+      shardHistory.add(resultJson);
+      return this;
+    }
+
+    /**
+     * Whether devices pull test classes from a shared queue until it is drained, so that faster
+     * devices execute more of the suite. Cannot be combined with sharding or device isolation.
+     */
+    public Builder setQueueTests(boolean queueTests) {
+      this.queueTests = queueTests;
+      return this;
+    }
+
+    /**
+     * Whether per-test events are printed to standard out as newline-delimited JSON in addition
+     * to being written to {@code events.ndjson} in the output directory.
+     */
+    public Builder setEventsToStdout(boolean eventsToStdout) {
+      this.eventsToStdout = eventsToStdout;
+      return this;
+    }
+
+    /**
+     * Whether the HTML report is kept current while tests are executing instead of only being
+     * rendered once every device has finished.
+     */
+    public Builder setLiveReport(boolean liveReport) {
+      this.liveReport = liveReport;
+      return this;
+    }
+
+    /**
+     * Number of times tests which failed on a device are run again on that device. Every attempt
+     * is recorded in the test's result and only the final attempt decides whether it passed.
+     */
+    public Builder setRetryFailed(int retryFailed) {
+      checkArgument(retryFailed >= 0, "Retry count must not be negative.");
+      this.retryFailed = retryFailed;
+      return this;
+    }
+
+    /**
+     * Number of devices to wait for when using all attached devices. When zero, waits only until
+     * every attached device has finished coming online.
+     */
+    public Builder setExpectedDevices(int expectedDevices) {
+      checkArgument(expectedDevices >= 0, "Expected device count must not be negative.");
+      this.expectedDevices = expectedDevices;
+      return this;
+    }
+
+    /** Longest time in ms to wait for attached devices to come online. */
+    public Builder setDeviceTimeout(int value) {
+      this.deviceTimeout = value;
+      return this;
+    }
+
+    /** Add an option, e.g. {@code -Xmx1g}, for the JVM of every isolated device process. */
+    public Builder addChildJvmOption(String option) {
+      checkNotNull(option, "Child JVM option cannot be null.");
+      childJvmOptions.add(option);
+      return this;
+    }
+
+    /**
+     * Class data archive which isolated device processes share to start faster. It is created by
+     * the first device process when it does not exist yet. Requires Java 13 or newer.
+     */
+    public Builder setClassDataArchive(File classDataArchive) {
+      this.classDataArchive = classDataArchive;
+      return this;
+    }
+
     public SpoonRunner build() {
       checkNotNull(androidSdk, "SDK is required.");
       checkArgument(androidSdk.exists(), "SDK path does not exist.");
@@ -374,10 +935,18 @@ public final class SpoonRunner {
         checkArgument(!Strings.isNullOrEmpty(className),
             "Must specify class name if you're specifying a method name.");
       }
+      checkArgument(shard || shardHistory.isEmpty(), "Shard history requires sharding.");
+      checkArgument(!queueTests || !shard, "Cannot both queue and shard tests.");
+      checkArgument(!queueTests || !isolateDevices,
+          "Queued tests require devices to run in this process.");
 
       return new SpoonRunner(title, androidSdk, applicationApk, instrumentationApk, output, debug,
           noAnimations, adbTimeout, serials, classpath, subpackageName, className, methodName, testSize,
-          noInstall, failIfNoDeviceConnected, filterLog, runId);
+          noInstall, failIfNoDeviceConnected, filterLog, runId, maxConcurrentDevices,
+          deviceExecutor, isolateDevices, shard, shardHistory, queueTests, eventsToStdout,
+          liveReport, retryFailed, expectedDevices, deviceTimeout, childJvmOptions,
+          classDataArchive, filterLogLevel, filterLogPids, filterLogOnDevice,
+          binaryLogcat, new LogLimits(logHeadLines, logTailLines, logMaxBytes));
     }
   }
 
@@ -428,6 +997,81 @@ public final class SpoonRunner {
         description = "Set maximum execution time per test in seconds (10min default)")
     public int adbTimeoutSeconds = DEFAULT_ADB_TIMEOUT;
 
+    @Parameter(names = { "--max-concurrent-devices" },
+        description = "Maximum number of devices to execute on at the same time (0 for all)")
+    public int maxConcurrentDevices;
+
+    @Parameter(names = { "--isolate-devices" },
+        description = "Execute each device in a separate JVM process")
+    public boolean isolateDevices;
+
+    @Parameter(names = { "--shard" },
+        description = "Split the tests across devices instead of running all tests on each device")
+    public boolean shard;
+
+    @Parameter(names = { "--shard-history" }, description =
+        "result.json of a previous run used to balance shards by test duration (with --shard)")
+    public List<String> shardHistory;
+
+    @Parameter(names = { "--queue-tests" }, description =
+        "Let devices pull test classes from a shared queue until all tests have run")
+    public boolean queueTests;
+
+    @Parameter(names = { "--events-stdout" }, description =
+        "Print per-test events to stdout as newline-delimited JSON while tests run")
+    public boolean eventsToStdout;
+
+    @Parameter(names = { "--live-report" }, description =
+        "Keep the HTML report updated while tests run instead of rendering it at the end")
+    public boolean liveReport;
+
+    @Parameter(names = { "--retry-failed" }, description =
+        "Run tests which failed again up to this many times, keeping every attempt")
+    public int retryFailed;
+
+    @Parameter(names = { "--expected-devices" }, description =
+        "Wait for this many devices to come online when no serial is specified")
+    public int expectedDevices;
+
+    @Parameter(names = { "--device-timeout" }, description =
+        "Longest time in seconds to wait for devices to come online")
+    public int deviceTimeoutSeconds = DEFAULT_DEVICE_TIMEOUT;
+
+    @Parameter(names = { "--child-jvm-option" }, description =
+        "Option for the JVM of each isolated device process, e.g. -Xmx1g (repeatable)")
+    public List<String> childJvmOptions;
+
+    @Parameter(names = { "--class-data-archive" }, converter = FileConverter.class, description =
+        "Class data archive isolated device processes share to start faster, created if missing")
+    public File classDataArchive;
+
+    @Parameter(names = { "--daemon" }, description =
+        "Stay resident with a warm ADB connection and execute runs submitted with --use-daemon")
+    public boolean daemon;
+
+    @Parameter(names = { "--use-daemon" }, description =
+        "Submit this run to a running daemon and stream its output, or run locally if none")
+    public boolean useDaemon;
+
+    @Parameter(names = { "--daemon-port" }, description = "Local port of the daemon")
+    public int daemonPort = SpoonDaemon.DEFAULT_PORT;
+
+    @Parameter(names = { "--coordinator-port" }, description =
+        "Distribute the run to workers connecting on this port instead of using local devices")
+    public int coordinatorPort;
+
+    @Parameter(names = { "--workers" }, description =
+        "Number of workers the coordinator waits for (with --coordinator-port)")
+    public int workers = 1;
+
+    @Parameter(names = { "--worker" }, description =
+        "Execute the shards assigned by the coordinator at host:port on the local devices")
+    public String worker;
+
+    @Parameter(names = { "--secret-file" }, description =
+        "File holding the secret shared by the coordinator and its workers")
+    public File secretFile;
+
     @Parameter(names = { "--debug" }, hidden = true)
     public boolean debug;
 
@@ -446,6 +1090,16 @@ public final class SpoonRunner {
               "The directory where to put the aggregation result", help = true)
     public String aggregate_out;
 
+    @Parameter(names = { "--searchLog" }, description =
+        "Print the log lines of the report in --output matching a query, "
+            + "e.g. \"level:e tag:Foo crash\"")
+    public String searchLog;
+
+    @Parameter(names = { "--archiveLogs" }, description =
+        "Store the logs of tests compressed in logs/<serial>/log.gz instead of in result.json, "
+            + "and let log pages decompress their log when opened")
+    public boolean archiveLogs;
+
     @Parameter(names = { "--noinstall" }, description =
               "Avoid installing the app", help = true)
     public boolean noinstall;
@@ -461,6 +1115,34 @@ public final class SpoonRunner {
     @Parameter(names = { "--filterLog" }, description =
               "\"&\" separated list of log tag to keep ", help = true)
     public String filterLog;
+
+    @Parameter(names = { "--filterLogLevel" }, converter = LogLevelConverter.class, description =
+        "Lowest level of logcat messages to keep (verbose, debug, info, warn, error, assert)")
+    public LogLevel filterLogLevel;
+
+    @Parameter(names = { "--filterLogPid" }, description =
+        "PID whose logcat messages are kept (repeatable)")
+    public List<String> filterLogPids;
+
+    @Parameter(names = { "--filterLogOnDevice" }, description =
+        "Filter logcat tags on the device. Messages with several \"&\" separated tags are dropped")
+    public boolean filterLogOnDevice;
+
+    @Parameter(names = { "--binaryLogcat" }, description =
+        "Read logcat in its binary format instead of parsing its text output")
+    public boolean binaryLogcat;
+
+    @Parameter(names = { "--logHeadLines" }, description =
+        "Keep only the first lines of each test's log, plus its tail (0 for none)")
+    public int logHeadLines;
+
+    @Parameter(names = { "--logTailLines" }, description =
+        "Keep only the last lines of each test's log, plus its head (0 for none)")
+    public int logTailLines;
+
+    @Parameter(names = { "--logMaxBytes" }, description =
+        "Most bytes of messages kept in each of the head and tail of each test's log")
+    public long logMaxBytes;
     
     @Parameter(names = { "--runId" }, description =
             "\"&\" identifier of the run, shared by all the test cases in this spoon run ", help = true)
@@ -486,6 +1168,18 @@ public final class SpoonRunner {
     }
   }
 
+  public static class LogLevelConverter implements IStringConverter<LogLevel> {
+    @Override public LogLevel convert(String value) {
+      LogLevel level = value.length() == 1
+          ? LogLevel.getByLetterString(value.toUpperCase(Locale.US))
+          : LogLevel.getByString(value.toLowerCase(Locale.US));
+      if (level == null) {
+        throw new ParameterException("Unknown log level: " + value);
+      }
+      return level;
+    }
+  }
+
   public static class TestSizeConverter
       implements IStringConverter<IRemoteAndroidTestRunner.TestSize> {
     @Override public IRemoteAndroidTestRunner.TestSize convert(String value) {
@@ -497,6 +1191,61 @@ public final class SpoonRunner {
     }
   }
 
+  /** Create a builder configured from the command line, except for the devices to run on. */
+  static SpoonRunner.Builder newBuilder(CommandLineArgs parsedArgs) {
+    SpoonRunner.Builder builder = new SpoonRunner.Builder() //
+        .setTitle(parsedArgs.title)
+        .setApplicationApk(parsedArgs.apk)
+        .setInstrumentationApk(parsedArgs.testApk)
+        .setOutputDirectory(parsedArgs.output)
+        .setDebug(parsedArgs.debug)
+        .setAndroidSdk(parsedArgs.sdk)
+        .setNoAnimations(parsedArgs.noAnimations)
+        .setTestSize(parsedArgs.size)
+        .setAdbTimeout(parsedArgs.adbTimeoutSeconds * 1000)
+        .setMaxConcurrentDevices(parsedArgs.maxConcurrentDevices)
+        .setIsolateDevices(parsedArgs.isolateDevices)
+        .setShard(parsedArgs.shard)
+        .setQueueTests(parsedArgs.queueTests)
+        .setEventsToStdout(parsedArgs.eventsToStdout)
+        .setLiveReport(parsedArgs.liveReport && !parsedArgs.nohtml)
+        .setRetryFailed(parsedArgs.retryFailed)
+        .setExpectedDevices(parsedArgs.expectedDevices)
+        .setDeviceTimeout(parsedArgs.deviceTimeoutSeconds * 1000)
+        .setClassDataArchive(parsedArgs.classDataArchive)
+        .setFailIfNoDeviceConnected(parsedArgs.failIfNoDeviceConnected)
+        .setSubpackageName(parsedArgs.subpackageName)
+        .setClassName(parsedArgs.className)
+        .setMethodName(parsedArgs.methodName)
+        .setNoInstall(parsedArgs.noinstall)
+        .setRunId(parsedArgs.runId != null && !parsedArgs.runId.equals("")
+            ? parsedArgs.runId : "defaultid")
+        .setFilterLog(parsedArgs.filterLog)
+        .setFilterLogLevel(parsedArgs.filterLogLevel)
+        .setFilterLogOnDevice(parsedArgs.filterLogOnDevice)
+        .setBinaryLogcat(parsedArgs.binaryLogcat)
+        .setLogHeadLines(parsedArgs.logHeadLines)
+        .setLogTailLines(parsedArgs.logTailLines)
+        .setLogMaxBytes(parsedArgs.logMaxBytes);
+
+    if (parsedArgs.shardHistory != null) {
+      for (String resultJson : parsedArgs.shardHistory) {
+        builder.addShardHistory(cleanFile(resultJson));
+      }
+    }
+    if (parsedArgs.filterLogPids != null) {
+      for (String pid : parsedArgs.filterLogPids) {
+        builder.addFilterLogPid(pid);
+      }
+    }
+    if (parsedArgs.childJvmOptions != null) {
+      for (String option : parsedArgs.childJvmOptions) {
+        builder.addChildJvmOption(option);
+      }
+    }
+    return builder;
+  }
+
   public static void main(String... args) {
     CommandLineArgs parsedArgs = new CommandLineArgs();
     JCommander jc = new JCommander(parsedArgs);
@@ -529,13 +1278,16 @@ public final class SpoonRunner {
             HtmlRenderer prev = null;
             for (String el : parsedArgs.aggregate){
                 logInfo("Adding result file to aggregate: %s", el);
-                HtmlRenderer rn = new HtmlRenderer(SpoonUtils.GSON, new File(el), new File(parsedArgs.aggregate_out), parsedArgs.noresultjson, parsedArgs.nohtml);
+                HtmlRenderer rn = new HtmlRenderer(SpoonUtils.GSON, new File(el),
+                    new File(parsedArgs.aggregate_out), parsedArgs.noresultjson,
+                    parsedArgs.nohtml, parsedArgs.archiveLogs);
                 if(prev == null)
                     prev = rn;
                 else {
                     logInfo("Aggregating: %s with %s", prev, rn);
                     // doesn't write on parsedArgs.aggregate_out yet
-                    prev = prev.aggregate(rn, new File(parsedArgs.aggregate_out), parsedArgs.noresultjson, parsedArgs.nohtml);
+                    prev = prev.aggregate(rn, new File(parsedArgs.aggregate_out),
+                        parsedArgs.noresultjson, parsedArgs.nohtml, parsedArgs.archiveLogs);
                 }
             }
 
@@ -548,24 +1300,44 @@ public final class SpoonRunner {
         Runtime.getRuntime().halt(0);
     }
 
-    SpoonRunner.Builder tmpBuilder = new SpoonRunner.Builder() //
-        .setTitle(parsedArgs.title)
-        .setApplicationApk(parsedArgs.apk)
-        .setInstrumentationApk(parsedArgs.testApk)
-        .setOutputDirectory(parsedArgs.output)
-        .setDebug(parsedArgs.debug)
-        .setAndroidSdk(parsedArgs.sdk)
-        .setNoAnimations(parsedArgs.noAnimations)
-        .setTestSize(parsedArgs.size)
-        .setAdbTimeout(parsedArgs.adbTimeoutSeconds * 1000)
-        .setFailIfNoDeviceConnected(parsedArgs.failIfNoDeviceConnected)
-        .setSubpackageName(parsedArgs.subpackageName)
-        .setClassName(parsedArgs.className)
-        .setMethodName(parsedArgs.methodName)
-        .setNoInstall(parsedArgs.noinstall)
-        .setRunId((parsedArgs.runId != null && !parsedArgs.runId.equals("") ? parsedArgs.runId : "defaultid" ))
-        .setFilterLog(parsedArgs.filterLog);
-        
+    if (parsedArgs.searchLog != null) {
+      Runtime.getRuntime().halt(searchLog(parsedArgs.output, parsedArgs.searchLog));
+    }
+
+    if (parsedArgs.daemon) {
+      try {
+        new SpoonDaemon(parsedArgs.sdk, parsedArgs.daemonPort, parsedArgs.debug).serve();
+      } catch (IOException e) {
+        System.err.println(e);
+        Runtime.getRuntime().halt(1);
+      }
+      return;
+    }
+
+    if (parsedArgs.useDaemon) {
+      int exitCode;
+      try {
+        exitCode = SpoonDaemon.submit(parsedArgs.daemonPort, args);
+      } catch (IOException e) {
+        System.err.println(e);
+        exitCode = 1;
+      }
+      if (exitCode != SpoonDaemon.NOT_RUNNING) {
+        Runtime.getRuntime().halt(exitCode);
+      }
+      logInfo("No daemon listening on port %d, running locally.", parsedArgs.daemonPort);
+    }
+
+    if (parsedArgs.coordinatorPort != 0) {
+      Runtime.getRuntime().halt(coordinate(parsedArgs, args));
+    }
+
+    if (parsedArgs.worker != null) {
+      Runtime.getRuntime().halt(work(parsedArgs));
+    }
+
+    SpoonRunner.Builder tmpBuilder = newBuilder(parsedArgs);
+
     SpoonRunner spoonRunner = null;
 
     if(parsedArgs.deviceSerial != null && !parsedArgs.deviceSerial.equals("")) {
@@ -592,4 +1364,93 @@ public final class SpoonRunner {
    	// System.exit(0);
     }
   }
+
+  /** Print the log lines of the report in {@code output} matching {@code query}. */
+  private static int searchLog(File output, String query) {
+    LogIndex index;
+    SpoonSummary summary;
+    try {
+      index = LogIndex.read(output);
+      summary = SpoonUtils.GSON.fromJson(
+          FileUtils.readFileToString(new File(output, "result.json"), "UTF-8"), SpoonSummary.class);
+      summary.resolveArchivedLogs(output);
+    } catch (IOException e) {
+      System.err.println("Unable to read the report in " + output + ": " + e.getMessage());
+      return 1;
+    }
+
+    List<LogIndex.Hit> hits = index.query(query);
+    DeviceTest test = null;
+    String serial = null;
+    List<LogCatMessage> log = null;
+    for (LogIndex.Hit hit : hits) {
+      if (!hit.test.equals(test) || !hit.serial.equals(serial)) {
+        test = hit.test;
+        serial = hit.serial;
+        log = summary.getResults().get(serial).getTestResults().get(test).getLog();
+      }
+      LogCatMessage message = log.get(hit.line);
+      System.out.println(String.format("%s %s#%s:%d %s %c/%s(%s): %s", serial,
+          test.getClassName(), test.getMethodName(), hit.line + 1, message.getTime(),
+          message.getLogLevel().getPriorityLetter(), message.getTag(), message.getPid(),
+          message.getMessage()));
+    }
+    System.out.println(hits.size() + " matching log lines.");
+    return 0;
+  }
+
+  /** Distribute the run to the workers and render their merged results, returning the exit code. */
+  private static int coordinate(CommandLineArgs parsedArgs, String[] args) {
+    if (parsedArgs.secretFile == null) {
+      System.err.println("--coordinator-port requires --secret-file.");
+      return 1;
+    }
+    try {
+      String secret = SpoonUtils.readSecret(parsedArgs.secretFile);
+      ServerSocket server = new ServerSocket(parsedArgs.coordinatorPort);
+      SpoonSummary summary;
+      try {
+        summary = new SpoonCoordinator(server, parsedArgs.workers,
+            parsedArgs.deviceTimeoutSeconds * 1000, parsedArgs.apk, parsedArgs.testApk,
+            parsedArgs.output, parsedArgs.title, args, secret, parsedArgs.debug).run();
+      } finally {
+        server.close();
+      }
+      new HtmlRenderer(summary, SpoonUtils.GSON, parsedArgs.output, parsedArgs.noresultjson,
+          parsedArgs.nohtml, parsedArgs.archiveLogs).render();
+      return parseOverallSuccess(summary) || !parsedArgs.failOnFailure ? 0 : 1;
+    } catch (IOException e) {
+      System.err.println(e);
+      return 1;
+    }
+  }
+
+  /** Execute the shards assigned by a coordinator on the local devices, returning the exit code. */
+  private static int work(CommandLineArgs parsedArgs) {
+    int separator = parsedArgs.worker.lastIndexOf(':');
+    if (separator == -1) {
+      System.err.println("Expected host:port of the coordinator but got " + parsedArgs.worker);
+      return 1;
+    }
+    if (parsedArgs.secretFile == null) {
+      System.err.println("--worker requires --secret-file.");
+      return 1;
+    }
+    String host = parsedArgs.worker.substring(0, separator);
+    int port = Integer.parseInt(parsedArgs.worker.substring(separator + 1));
+
+    AndroidDebugBridge adb = SpoonUtils.initAdb(parsedArgs.sdk);
+    try {
+      SpoonWorker.Backend backend = new SpoonWorker.AdbBackend(adb, parsedArgs.sdk,
+          parsedArgs.expectedDevices, parsedArgs.deviceTimeoutSeconds * 1000);
+      String secret = SpoonUtils.readSecret(parsedArgs.secretFile);
+      String name = InetAddress.getLocalHost().getHostName();
+      return new SpoonWorker(host, port, parsedArgs.output, backend, name, secret).run();
+    } catch (IOException e) {
+      System.err.println(e);
+      return 1;
+    } finally {
+      AndroidDebugBridge.terminate();
+    }
+  }
 }
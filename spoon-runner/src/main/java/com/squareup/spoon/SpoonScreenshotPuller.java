@@ -0,0 +1,162 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.SyncService;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.squareup.spoon.adapters.TestIdentifierAdapter;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.android.ddmlib.FileListingService.FileEntry;
+import static com.squareup.spoon.SpoonLogger.logDebug;
+import static com.squareup.spoon.SpoonLogger.logError;
+import static com.squareup.spoon.SpoonUtils.createAnimatedGif;
+import static com.squareup.spoon.SpoonUtils.obtainDirectoryFileEntry;
+
+/**
+ * Pulls the screenshots of each test from the device on a background thread as soon as the test
+ * ends, so that the transfer overlaps with the execution of the following tests.
+ */
+final class SpoonScreenshotPuller implements ITestRunListener {
+  /** Mirrors how the client turns a test class name into a directory name. */
+  private static final String CLASS_NAME_INVALID = "[^A-Za-z0-9._-]";
+
+  private final IDevice device;
+  private final String devicePath;
+  private final File imageDir;
+  private final boolean animatedGifs;
+  private final boolean debug;
+  private final TestIdentifierAdapter testIdentifierAdapter;
+  private final ExecutorService executor;
+  private final Map<DeviceTest, List<File>> screenshots =
+      new ConcurrentHashMap<DeviceTest, List<File>>();
+  private final Map<DeviceTest, File> animatedGifFiles = new ConcurrentHashMap<DeviceTest, File>();
+
+  /**
+   * @param devicePath Directory on the device the client writes screenshots to.
+   * @param imageDir Local directory to pull screenshots to, one sub-directory per test class.
+   * @param animatedGifs Whether an animated GIF is made for tests with several screenshots.
+   */
+  SpoonScreenshotPuller(final IDevice device, String devicePath, File imageDir,
+      boolean animatedGifs, boolean debug, TestIdentifierAdapter testIdentifierAdapter) {
+    this.device = device;
+    this.devicePath = devicePath;
+    this.imageDir = imageDir;
+    this.animatedGifs = animatedGifs;
+    this.debug = debug;
+    this.testIdentifierAdapter = testIdentifierAdapter;
+    this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "spoon-screenshots-" + device.getSerialNumber());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  @Override public void testRunStarted(String runName, int testCount) {
+  }
+
+  @Override public void testStarted(TestIdentifier test) {
+  }
+
+  @Override public void testFailed(TestIdentifier test, String trace) {
+  }
+
+  @Override public void testAssumptionFailure(TestIdentifier test, String trace) {
+  }
+
+  @Override public void testIgnored(TestIdentifier test) {
+  }
+
+  @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+    final DeviceTest deviceTest = DeviceTest.from(testIdentifierAdapter.adapt(test));
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        pull(deviceTest);
+      }
+    });
+  }
+
+  @Override public void testRunFailed(String errorMessage) {
+  }
+
+  @Override public void testRunStopped(long elapsedTime) {
+  }
+
+  @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+  }
+
+  /** Wait for the screenshots of every test which has ended to be pulled. */
+  void awaitPulls() throws InterruptedException {
+    executor.shutdown();
+    if (!executor.awaitTermination(10, TimeUnit.MINUTES)) {
+      executor.shutdownNow();
+      logError("[%s] Timed out pulling screenshots.", device.getSerialNumber());
+    }
+  }
+
+  /** Pulled screenshots of each test, in the order they were taken. */
+  Map<DeviceTest, List<File>> getScreenshots() {
+    return screenshots;
+  }
+
+  /** Animated GIFs of the tests which have more than one screenshot. */
+  Map<DeviceTest, File> getAnimatedGifs() {
+    return animatedGifFiles;
+  }
+
+  private void pull(DeviceTest test) {
+    String className = test.getClassName().replaceAll(CLASS_NAME_INVALID, "_");
+    String methodName = test.getMethodName();
+    File classDir = new File(imageDir, className);
+    File methodDir = new File(classDir, methodName);
+    SyncService sync = null;
+    try {
+      classDir.mkdirs();
+      FileEntry deviceDir =
+          obtainDirectoryFileEntry(devicePath + "/" + className + "/" + methodName);
+      sync = device.getSyncService();
+      sync.pull(new FileEntry[] {deviceDir}, classDir.getAbsolutePath(),
+          SyncService.getNullProgressMonitor());
+    } catch (Exception e) {
+      // Most tests do not take any screenshots, in which case there is no directory to pull.
+      logDebug(debug, "[%s] No screenshots pulled for %s: %s", device.getSerialNumber(), test,
+          e.getMessage());
+      return;
+    } finally {
+      if (sync != null) {
+        sync.close();
+      }
+    }
+
+    File[] files = methodDir.listFiles();
+    if (files == null || files.length == 0) {
+      return;
+    }
+    List<File> testScreenshots = new ArrayList<File>(Arrays.asList(files));
+    Collections.sort(testScreenshots);
+    screenshots.put(test, testScreenshots);
+
+    if (animatedGifs && testScreenshots.size() > 1) {
+      File animatedGif = new File(classDir, methodName + ".gif");
+      try {
+        createAnimatedGif(testScreenshots, animatedGif);
+        animatedGifFiles.put(test, animatedGif);
+      } catch (Exception e) {
+        logError("[%s] Unable to create animated GIF for %s: %s", device.getSerialNumber(), test,
+            e.getMessage());
+      }
+    }
+  }
+}
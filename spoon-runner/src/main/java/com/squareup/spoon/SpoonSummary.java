@@ -2,6 +2,7 @@ package com.squareup.spoon;
 
 import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
 
+import java.io.File;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -55,6 +56,15 @@ public final class SpoonSummary {
     return results;
   }
 
+  /** Resolve the archived logs of every test against {@code directory}, the report's. */
+  public void resolveArchivedLogs(File directory) {
+    for (DeviceResult result : results.values()) {
+      for (DeviceTestResult testResult : result.getTestResults().values()) {
+        testResult.resolveArchivedLog(directory);
+      }
+    }
+  }
+
   /** Aggregate to SpoonSummaries into one */
   public SpoonSummary aggregate(SpoonSummary ss){
     Map<String, DeviceResult> results = new HashMap<String, DeviceResult>();
@@ -120,6 +130,14 @@ public final class SpoonSummary {
       return this;
     }
 
+    /** Remove the result added for {@code serial}, e.g. when its work was executed again. */
+    Builder removeResult(String serial) {
+      synchronized (results) {
+        results.remove(serial);
+      }
+      return this;
+    }
+
     Builder start() {
       checkArgument(start == 0, "Start already called.");
       start = System.nanoTime();
@@ -134,6 +152,16 @@ public final class SpoonSummary {
       return this;
     }
 
+    /** A summary of the results added so far, while the run is still executing. */
+    SpoonSummary snapshot() {
+      checkNotNull(title, "Title is required.");
+      checkArgument(start != 0, "Start must be called before taking a snapshot.");
+      long elapsed = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+      synchronized (results) {
+        return new SpoonSummary(title, testSize, started, elapsed, results);
+      }
+    }
+
     SpoonSummary build() {
       checkNotNull(title, "Title is required.");
       checkNotNull(started, "Never started.");
@@ -0,0 +1,65 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.squareup.spoon.adapters.TestIdentifierAdapter;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.squareup.spoon.SpoonLogger.logDebug;
+
+/** Records the tests reported by a log-only instrumentation run without executing them. */
+final class SpoonTestCollector implements ITestRunListener {
+  private final Set<DeviceTest> tests = new LinkedHashSet<DeviceTest>();
+  private final boolean debug;
+  private final TestIdentifierAdapter testIdentifierAdapter;
+  private String runFailure;
+
+  SpoonTestCollector(boolean debug, TestIdentifierAdapter testIdentifierAdapter) {
+    this.debug = debug;
+    this.testIdentifierAdapter = testIdentifierAdapter;
+  }
+
+  /** Tests in the order the instrumentation reported them. */
+  List<DeviceTest> getTests() {
+    if (runFailure != null) {
+      throw new IllegalStateException("Unable to list tests: " + runFailure);
+    }
+    return new ArrayList<DeviceTest>(tests);
+  }
+
+  @Override public void testRunStarted(String runName, int testCount) {
+    logDebug(debug, "testCount=%d runName=%s", testCount, runName);
+  }
+
+  @Override public void testStarted(TestIdentifier test) {
+    tests.add(DeviceTest.from(testIdentifierAdapter.adapt(test)));
+  }
+
+  @Override public void testFailed(TestIdentifier test, String trace) {
+  }
+
+  @Override public void testAssumptionFailure(TestIdentifier test, String trace) {
+  }
+
+  @Override public void testIgnored(TestIdentifier test) {
+  }
+
+  @Override public void testEnded(TestIdentifier test, Map<String, String> testMetrics) {
+  }
+
+  @Override public void testRunFailed(String errorMessage) {
+    logDebug(debug, "errorMessage=%s", errorMessage);
+    runFailure = errorMessage;
+  }
+
+  @Override public void testRunStopped(long elapsedTime) {
+  }
+
+  @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+    logDebug(debug, "collected %d tests", tests.size());
+  }
+}
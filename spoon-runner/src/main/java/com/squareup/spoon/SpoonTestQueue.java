@@ -0,0 +1,43 @@
+package com.squareup.spoon;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Test classes shared by all devices of a run. Each device repeatedly takes the next class until
+ * the queue is drained, so faster devices end up executing more of the suite.
+ */
+final class SpoonTestQueue {
+  /** Create a queue of the distinct classes of {@code tests}, in the order they were listed. */
+  static SpoonTestQueue fromTests(List<DeviceTest> tests) {
+    Set<String> classNames = new LinkedHashSet<String>();
+    for (DeviceTest test : tests) {
+      classNames.add(test.getClassName());
+    }
+    return new SpoonTestQueue(classNames);
+  }
+
+  private final Queue<String> classNames;
+
+  SpoonTestQueue(Set<String> classNames) {
+    this.classNames = new ConcurrentLinkedQueue<String>(classNames);
+  }
+
+  /** The next test class to execute, or {@code null} once all classes were handed out. */
+  String next() {
+    return classNames.poll();
+  }
+
+  /** Hand {@code className} out again, e.g. because its device disconnected while running it. */
+  void requeue(String className) {
+    classNames.add(className);
+  }
+
+  /** Number of classes which were not handed out yet. */
+  int size() {
+    return classNames.size();
+  }
+}
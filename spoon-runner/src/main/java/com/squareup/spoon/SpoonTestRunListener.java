@@ -5,7 +5,9 @@ import com.android.ddmlib.testrunner.TestIdentifier;
 import com.squareup.spoon.adapters.TestIdentifierAdapter;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.squareup.spoon.SpoonLogger.logDebug;
@@ -18,24 +20,45 @@ final class SpoonTestRunListener implements ITestRunListener {
       new HashMap<TestIdentifier, DeviceTestResult.Builder>();
   private final boolean debug;
   private final TestIdentifierAdapter testIdentifierAdapter;
+  private final boolean timesRun;
+  private final SpoonEventLog events;
+  private final Set<TestIdentifier> failedTests = new HashSet<TestIdentifier>();
 
   SpoonTestRunListener(DeviceResult.Builder result, boolean debug,
       TestIdentifierAdapter testIdentifierAdapter) {
+    this(result, debug, testIdentifierAdapter, true, null);
+  }
+
+  /**
+   * @param timesRun Whether the start and end of this instrumentation run are also the start and
+   *        end of the device's tests. Disable this when several runs are folded into one result.
+   * @param events Log to stream per-test events to as they happen, or {@code null}.
+   */
+  SpoonTestRunListener(DeviceResult.Builder result, boolean debug,
+      TestIdentifierAdapter testIdentifierAdapter, boolean timesRun, SpoonEventLog events) {
     checkNotNull(result);
     this.result = result;
     this.debug = debug;
     this.testIdentifierAdapter = testIdentifierAdapter;
+    this.timesRun = timesRun;
+    this.events = events;
   }
 
   @Override public void testRunStarted(String runName, int testCount) {
     logDebug(debug, "testCount=%d runName=%s", testCount, runName);
-    result.startTests();
+    if (timesRun) {
+      result.startTests();
+    }
   }
 
   @Override public void testStarted(TestIdentifier test) {
     logDebug(debug, "test=%s", test);
     DeviceTestResult.Builder methodResult = new DeviceTestResult.Builder().startTest();
-    methodResults.put(testIdentifierAdapter.adapt(test), methodResult);
+    test = testIdentifierAdapter.adapt(test);
+    methodResults.put(test, methodResult);
+    if (events != null) {
+      events.testStarted(DeviceTest.from(test));
+    }
   }
 
   @Override public void testFailed(TestIdentifier test, String trace) {
@@ -49,6 +72,10 @@ final class SpoonTestRunListener implements ITestRunListener {
     }
     logDebug(debug, "failed %s", trace);
     methodResult.markTestAsFailed(trace);
+    failedTests.add(test);
+    if (events != null) {
+      events.testFailed(DeviceTest.from(test), trace);
+    }
   }
 
   @Override public void testAssumptionFailure(TestIdentifier test, String trace) {
@@ -73,6 +100,10 @@ final class SpoonTestRunListener implements ITestRunListener {
     }
     DeviceTestResult.Builder methodResultBuilder = methodResult.endTest();
     result.addTestResultBuilder(DeviceTest.from(test), methodResultBuilder);
+    if (events != null) {
+      events.testEnded(DeviceTest.from(test), failedTests.contains(test)
+          ? DeviceTestResult.Status.FAIL : DeviceTestResult.Status.PASS);
+    }
   }
 
   @Override public void testRunFailed(String errorMessage) {
@@ -86,7 +117,9 @@ final class SpoonTestRunListener implements ITestRunListener {
 
   @Override public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
     logDebug(debug, "elapsedTime=%d", elapsedTime);
-    result.endTests();
+    if (timesRun) {
+      result.endTests();
+    }
   }
 
 }
@@ -15,7 +15,7 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.util.LinkedHashSet;
+import java.security.MessageDigest;
 import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
@@ -23,28 +23,73 @@ import javax.imageio.ImageIO;
 import org.apache.commons.io.FileUtils;
 
 import static com.android.ddmlib.FileListingService.FileEntry;
+import static com.google.common.base.Charsets.UTF_8;
 import static com.android.ddmlib.FileListingService.TYPE_DIRECTORY;
 
 /** Utilities for executing instrumentation tests on devices. */
 final class SpoonUtils {
   private static final Pattern SERIAL_VALIDATION = Pattern.compile("[^a-zA-Z0-9_-]");
-  static final Gson GSON = new GsonBuilder() //
-      .registerTypeAdapter(File.class, new TypeAdapter<File>() {
-        @Override public void write(JsonWriter jsonWriter, File file) throws IOException {
-          if (file == null) {
-            jsonWriter.nullValue();
-          } else {
-            jsonWriter.value(file.getAbsolutePath());
-          }
-        }
+  private static final long ADB_CONNECT_TIMEOUT_MS = 5000;
+  static final Gson GSON = newGson(new TypeAdapter<File>() {
+    @Override public void write(JsonWriter jsonWriter, File file) throws IOException {
+      if (file == null) {
+        jsonWriter.nullValue();
+      } else {
+        jsonWriter.value(file.getAbsolutePath());
+      }
+    }
 
-        @Override public File read(JsonReader jsonReader) throws IOException {
-          return new File(jsonReader.nextString());
+    @Override public File read(JsonReader jsonReader) throws IOException {
+      return new File(jsonReader.nextString());
+    }
+  });
+
+  private static Gson newGson(TypeAdapter<File> fileAdapter) {
+    return new GsonBuilder() //
+        .registerTypeAdapter(File.class, fileAdapter) //
+        .registerTypeAdapterFactory(DeviceTestResult.JSON_ADAPTER) //
+        .enableComplexMapKeySerialization() //
+        .setPrettyPrinting() //
+        .create();
+  }
+
+  /**
+   * Like {@link #GSON}, but files below {@code root} are written relative to it and relative
+   * paths are read back below it. Results stay valid when their files are moved to another host.
+   */
+  static Gson relativeGson(final File root) {
+    final String prefix = root.getAbsolutePath() + File.separator;
+    return newGson(new TypeAdapter<File>() {
+      @Override public void write(JsonWriter jsonWriter, File file) throws IOException {
+        if (file == null) {
+          jsonWriter.nullValue();
+          return;
         }
-      }) //
-      .enableComplexMapKeySerialization() //
-      .setPrettyPrinting() //
-      .create();
+        String path = file.getAbsolutePath();
+        jsonWriter.value(path.startsWith(prefix) ? path.substring(prefix.length()) : path);
+      }
+
+      @Override public File read(JsonReader jsonReader) throws IOException {
+        File file = new File(jsonReader.nextString());
+        return file.isAbsolute() ? file : new File(root, file.getPath());
+      }
+    });
+  }
+
+  /** Read the shared secret in {@code file}, ignoring surrounding whitespace. */
+  static String readSecret(File file) throws IOException {
+    String secret = FileUtils.readFileToString(file, "UTF-8").trim();
+    if (secret.isEmpty()) {
+      throw new IOException("Secret file " + file + " is empty.");
+    }
+    return secret;
+  }
+
+  /** Compare secrets in constant time, so that timing does not reveal how much of one matched. */
+  static boolean secretsMatch(String expected, String actual) {
+    return actual != null
+        && MessageDigest.isEqual(expected.getBytes(UTF_8), actual.getBytes(UTF_8));
+  }
 
   /** Fetch or create a real device that corresponds to a device model. */
   static IDevice obtainRealDevice(AndroidDebugBridge adb, String serial) {
@@ -86,13 +131,19 @@ final class SpoonUtils {
     DdmPreferences.setLogLevel("debug");
   }
 
-  /** Find all device serials that are plugged in through ADB. */
-  static Set<String> findAllDevices(AndroidDebugBridge adb) {
-    Set<String> devices = new LinkedHashSet<String>();
-    for (IDevice realDevice : adb.getDevices()) {
-      devices.add(realDevice.getSerialNumber());
+  /**
+   * Find the serials of all online devices. Waits up to {@code timeoutMs} for at least
+   * {@code expectedCount} devices to come online or, if it is zero, for the device list to settle.
+   */
+  static Set<String> findAllDevices(AndroidDebugBridge adb, int expectedCount, long timeoutMs) {
+    DeviceWatcher watcher = DeviceWatcher.start(adb);
+    try {
+      return watcher.awaitDevices(expectedCount, timeoutMs);
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    } finally {
+      watcher.stop();
     }
-    return devices;
   }
 
   /** Get an {@link com.android.ddmlib.AndroidDebugBridge} instance given an SDK path. */
@@ -129,17 +180,19 @@ final class SpoonUtils {
   }
 
   private static void waitForAdb(AndroidDebugBridge adb) {
-    for (int i = 1; i < 10; i++) {
+    // The bridge has no event for connecting or for receiving its initial device list, which may
+    // be empty. Check often so that startup is not padded by sleeps.
+    long deadline = System.currentTimeMillis() + ADB_CONNECT_TIMEOUT_MS;
+    while (!adb.isConnected() || !adb.hasInitialDeviceList()) {
+      if (System.currentTimeMillis() > deadline) {
+        throw new RuntimeException("Unable to connect to adb.");
+      }
       try {
-        Thread.sleep(i * 100);
+        Thread.sleep(10);
       } catch (InterruptedException e) {
         throw new RuntimeException(e);
       }
-      if (adb.isConnected()) {
-        return;
-      }
     }
-    throw new RuntimeException("Unable to connect to adb.");
   }
 
   private SpoonUtils() {
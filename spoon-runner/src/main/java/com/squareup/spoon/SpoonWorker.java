@@ -0,0 +1,218 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.beust.jcommander.JCommander;
+import com.google.gson.Gson;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.squareup.spoon.FramedChannel.Frame;
+import static com.squareup.spoon.FramedChannel.Type;
+import static com.squareup.spoon.SpoonLogger.logInfo;
+import static com.squareup.spoon.SpoonUtils.GSON;
+
+/**
+ * Executes the shards a {@link SpoonCoordinator} assigns to the devices of this host and streams
+ * their results and screenshots back to it.
+ */
+final class SpoonWorker {
+  /** Where the devices of a worker come from and how a shard is executed on one of them. */
+  interface Backend {
+    /** Serials of the devices available to this worker. */
+    Set<String> devices();
+
+    /** Execute one shard of the suite configured by {@code args} on {@code serial}. */
+    DeviceResult run(SpoonRunner.CommandLineArgs args, String serial, int numShards,
+        int shardIndex) throws Exception;
+  }
+
+  /** Runs shards with {@link SpoonDeviceRunner} against the local ADB. */
+  static final class AdbBackend implements Backend {
+    private final AndroidDebugBridge adb;
+    private final File androidSdk;
+    private final int expectedDevices;
+    private final int deviceTimeout;
+
+    AdbBackend(AndroidDebugBridge adb, File androidSdk, int expectedDevices, int deviceTimeout) {
+      this.adb = adb;
+      this.androidSdk = androidSdk;
+      this.expectedDevices = expectedDevices;
+      this.deviceTimeout = deviceTimeout;
+    }
+
+    @Override public Set<String> devices() {
+      return SpoonUtils.findAllDevices(adb, expectedDevices, deviceTimeout);
+    }
+
+    @Override public DeviceResult run(SpoonRunner.CommandLineArgs args, String serial,
+        int numShards, int shardIndex) {
+      args.sdk = androidSdk;
+      return SpoonRunner.newBuilder(args).addDevice(serial).build()
+          .runShard(adb, serial, numShards, shardIndex);
+    }
+  }
+
+  private final String host;
+  private final int port;
+  private final File workDir;
+  private final Backend backend;
+  private final String name;
+  private final String secret;
+
+  /**
+   * @param workDir Directory for the APKs received from the coordinator and the run output.
+   * @param name Name of this worker in the coordinator's logs and report.
+   * @param secret Secret shared with the coordinator.
+   */
+  SpoonWorker(String host, int port, File workDir, Backend backend, String name, String secret) {
+    this.host = checkNotNull(host);
+    this.port = port;
+    this.workDir = checkNotNull(workDir);
+    this.backend = checkNotNull(backend);
+    this.name = checkNotNull(name);
+    this.secret = checkNotNull(secret);
+  }
+
+  /**
+   * Connect to the coordinator and execute its assignment.
+   *
+   * @return {@code 0} if every shard was executed and its result sent, {@code 1} otherwise.
+   */
+  int run() throws IOException {
+    Socket socket = new Socket(InetAddress.getByName(host), port);
+    try {
+      final FramedChannel channel =
+          new FramedChannel(socket.getInputStream(), socket.getOutputStream());
+      List<String> devices = new ArrayList<String>(backend.devices());
+      logInfo("Connected to coordinator %s:%d with device(s) %s.", host, port, devices);
+      channel.send(Type.HELLO, GSON.toJson(new SpoonCoordinator.Hello(name, devices, secret)));
+
+      final File output = new File(workDir, "output");
+      FileUtils.deleteDirectory(output);
+      final File applicationApk = new File(workDir, SpoonCoordinator.FILE_APK);
+      final File instrumentationApk = new File(workDir, SpoonCoordinator.FILE_TEST_APK);
+      SpoonCoordinator.Assignment assignment = null;
+      while (assignment == null) {
+        Frame frame = channel.receive();
+        if (frame == null) {
+          throw new IOException("Coordinator closed the connection before assigning work.");
+        } else if (frame.type == Type.FILE && SpoonCoordinator.FILE_APK.equals(frame.payload)) {
+          channel.receiveFile(applicationApk);
+        } else if (frame.type == Type.FILE
+            && SpoonCoordinator.FILE_TEST_APK.equals(frame.payload)) {
+          channel.receiveFile(instrumentationApk);
+        } else if (frame.type == Type.ASSIGN) {
+          assignment = GSON.fromJson(frame.payload, SpoonCoordinator.Assignment.class);
+          if (!SpoonUtils.secretsMatch(secret, assignment.secret)) {
+            throw new IOException("Coordinator sent the wrong secret.");
+          }
+        } else {
+          throw new IOException("Unexpected frame from coordinator: " + frame);
+        }
+      }
+
+      final Gson gson = SpoonUtils.relativeGson(output);
+      final int numShards = assignment.numShards;
+      final Set<String> sent = new HashSet<String>();
+      final AtomicBoolean failed = new AtomicBoolean();
+      ExecutorService executor = Executors.newFixedThreadPool(
+          Math.max(1, assignment.shards.size()), new SpoonRunner.DeviceThreadFactory());
+      for (final Map.Entry<String, Integer> shard : assignment.shards.entrySet()) {
+        // Every device parses its own copy, as the backend may adjust the arguments.
+        final SpoonRunner.CommandLineArgs args =
+            parseArgs(assignment.args, applicationApk, instrumentationApk, output);
+        executor.execute(new Runnable() {
+          @Override public void run() {
+            String serial = shard.getKey();
+            DeviceResult result;
+            try {
+              result = backend.run(args, serial, numShards, shard.getValue());
+            } catch (Exception e) {
+              e.printStackTrace(System.out);
+              failed.set(true);
+              result = new DeviceResult.Builder().addException(e).build();
+            }
+            try {
+              sendFiles(channel, output, result, sent);
+              channel.send(Type.RESULT,
+                  gson.toJson(new SpoonCoordinator.Result(serial, result)));
+            } catch (IOException e) {
+              logInfo("[%s] Unable to send result to coordinator: %s", serial, e.getMessage());
+              failed.set(true);
+            }
+          }
+        });
+      }
+      executor.shutdown();
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while executing shards.");
+      }
+      int exitCode = failed.get() ? 1 : 0;
+      channel.send(Type.EXIT, Integer.toString(exitCode));
+      return exitCode;
+    } finally {
+      IOUtils.closeQuietly(socket);
+    }
+  }
+
+  private static SpoonRunner.CommandLineArgs parseArgs(String[] arguments, File applicationApk,
+      File instrumentationApk, File output) {
+    SpoonRunner.CommandLineArgs args = new SpoonRunner.CommandLineArgs();
+    new JCommander(args).parse(arguments);
+    args.apk = applicationApk;
+    args.testApk = instrumentationApk;
+    args.output = output;
+    // The coordinator decides the shards, each device runs exactly the one assigned to it.
+    args.shard = false;
+    args.shardHistory = null;
+    args.queueTests = false;
+    args.isolateDevices = false;
+    args.liveReport = false;
+    return args;
+  }
+
+  /** Send the screenshots and animations referenced by {@code result} which were not yet sent. */
+  private static void sendFiles(FramedChannel channel, File output, DeviceResult result,
+      Set<String> sent) throws IOException {
+    Set<File> files = new LinkedHashSet<File>();
+    for (DeviceTestResult testResult : result.getTestResults().values()) {
+      files.addAll(testResult.getScreenshots());
+      if (testResult.getAnimatedGif() != null) {
+        files.add(testResult.getAnimatedGif());
+      }
+    }
+    String root = output.getAbsolutePath() + File.separator;
+    for (File file : files) {
+      String path = file.getAbsolutePath();
+      if (!path.startsWith(root) || !file.isFile()) {
+        continue;
+      }
+      String relative = path.substring(root.length()).replace(File.separatorChar, '/');
+      synchronized (sent) {
+        if (!sent.add(relative)) {
+          continue;
+        }
+      }
+      channel.sendFile(relative, file);
+    }
+  }
+}
@@ -18,6 +18,11 @@ import static com.squareup.spoon.DeviceTestResult.Status;
 /** Model for representing the {@code index.html} page. */
 final class HtmlIndex {
   static HtmlIndex from(SpoonSummary summary) {
+    return from(summary, null);
+  }
+
+  /** @param progress Progress of a run still executing, or {@code null} once it has finished. */
+  static HtmlIndex from(SpoonSummary summary, Progress progress) {
     int testsRun = 0;
     int totalSuccess = 0;
     Set<DeviceTest> tests = new LinkedHashSet<DeviceTest>();
@@ -57,19 +62,55 @@ final class HtmlIndex {
     }
     subtitle.append(" at ").append(started);
 
-    return new HtmlIndex(summary.getTitle(), subtitle.toString(), tests.size(), devices);
+    return new HtmlIndex(summary.getTitle(), subtitle.toString(), tests.size(), devices,
+        progress);
   }
 
   public final String title;
   public final String subtitle;
   public final int testCount;
   public final List<Device> devices;
+  public final Progress progress;
 
   HtmlIndex(String title, String subtitle, int testCount, List<Device> devices) {
+    this(title, subtitle, testCount, devices, null);
+  }
+
+  HtmlIndex(String title, String subtitle, int testCount, List<Device> devices,
+      Progress progress) {
     this.title = title;
     this.subtitle = subtitle;
     this.testCount = testCount;
     this.devices = devices;
+    this.progress = progress;
+  }
+
+  /** State of a run which has not finished yet. */
+  static final class Progress {
+    public final int refreshSeconds;
+    public final String status;
+    public final List<Failure> failures;
+
+    Progress(int refreshSeconds, String status, List<Failure> failures) {
+      this.refreshSeconds = refreshSeconds;
+      this.status = status;
+      this.failures = failures;
+    }
+  }
+
+  /** A failure reported while its device was still executing. */
+  static final class Failure {
+    public final String serial;
+    public final String classSimpleName;
+    public final String prettyMethodName;
+    public final String trace;
+
+    Failure(String serial, String className, String methodName, String trace) {
+      this.serial = serial;
+      this.classSimpleName = HtmlUtils.getClassSimpleName(className);
+      this.prettyMethodName = HtmlUtils.prettifyMethodName(methodName);
+      this.trace = trace;
+    }
   }
 
   static final class Device implements Comparable<Device> {
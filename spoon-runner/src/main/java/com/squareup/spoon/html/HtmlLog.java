@@ -8,7 +8,12 @@ import java.util.List;
 
 /** Model for representing a {@code log.html} page. */
 final class HtmlLog {
-  public static HtmlLog from(String name, DeviceTest test, DeviceTestResult result) {
+  /**
+   * @param script Script holding the compressed log, which the page decompresses when opened, or
+   *        {@code null} to embed every line in the page.
+   */
+  public static HtmlLog from(String name, DeviceTest test, DeviceTestResult result,
+      String script) {
     String status;
     switch (result.getOverallStatus()) {
       case PASS:
@@ -28,27 +33,46 @@ final class HtmlLog {
     String subtitle = "Test " + status
         + " in " + HtmlUtils.humanReadableDuration(result.getDuration())
         + " on " + name;
+    if (result.getDroppedLogLines() > 0) {
+      subtitle += ", " + result.getDroppedLogLines() + " log lines dropped";
+    }
 
     List<LogEntry> log = new ArrayList<LogEntry>();
-    for (LogCatMessage message : result.getLog()) {
-      log.add(LogEntry.from(message));
+    Archive archive = null;
+    if (script != null) {
+      archive = new Archive(script);
+    } else {
+      for (LogCatMessage message : result.getLog()) {
+        log.add(LogEntry.from(message, log.size()));
+      }
     }
 
-    return new HtmlLog(title, subtitle, log);
+    return new HtmlLog(title, subtitle, log, archive);
   }
 
   public final String title;
   public final String subtitle;
   public final List<LogEntry> log;
+  public final Archive archive;
 
-  HtmlLog(String title, String subtitle, List<LogEntry> log) {
+  HtmlLog(String title, String subtitle, List<LogEntry> log, Archive archive) {
     this.title = title;
     this.subtitle = subtitle;
     this.log = log;
+    this.archive = archive;
+  }
+
+  static class Archive {
+    /** URI of the script, relative to the page. */
+    public final String script;
+
+    Archive(String script) {
+      this.script = script;
+    }
   }
 
   static class LogEntry {
-    static LogEntry from(LogCatMessage message) {
+    static LogEntry from(LogCatMessage message, int line) {
       String rowClass;
       switch (message.getLogLevel()) {
         case ERROR:
@@ -66,10 +90,11 @@ final class HtmlLog {
 
       String timestamp = message.getTime();
       String level = message.getLogLevel().getStringValue();
-      return new LogEntry(rowClass, timestamp, level, message.getTag(), message.getMessage(), 
-        message.getPid(), message.getTid(), message.getAppName());
+      return new LogEntry(line, rowClass, timestamp, level, message.getTag(),
+        message.getMessage(), message.getPid(), message.getTid(), message.getAppName());
     }
 
+    public final int line;
     public final String rowClass;
     public final String timestamp;
     public final String level;
@@ -79,8 +104,9 @@ final class HtmlLog {
     public final String pid;
     public final String appName;
 
-    LogEntry(String rowClass, String timestamp, String level, String tag, String message, 
-      String pid, String tid, String appName) {
+    LogEntry(int line, String rowClass, String timestamp, String level, String tag,
+      String message, String pid, String tid, String appName) {
+      this.line = line;
       this.rowClass = rowClass;
       this.timestamp = timestamp;
       this.level = level;
@@ -1,18 +1,30 @@
 package com.squareup.spoon.html;
 
+import com.android.ddmlib.logcat.LogCatMessage;
 import com.github.mustachejava.DefaultMustacheFactory;
 import com.github.mustachejava.Mustache;
 import com.github.mustachejava.MustacheFactory;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
 import com.google.common.io.Resources;
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import com.squareup.spoon.DeviceDetails;
 import com.squareup.spoon.DeviceResult;
 import com.squareup.spoon.DeviceTest;
 import com.squareup.spoon.DeviceTestResult;
+import com.squareup.spoon.LogArchive;
+import com.squareup.spoon.LogIndex;
 import com.squareup.spoon.SpoonSummary;
 
 import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import org.apache.commons.io.FileUtils;
@@ -25,6 +37,8 @@ import static com.google.common.base.Charsets.UTF_8;
 public final class HtmlRenderer {
 
   public static final String INDEX_FILENAME = "index.html";
+  private static final String LOGS_DIRECTORY = "logs";
+  private static final String LOG_ARCHIVE = "log.gz";
   private static final String STATIC_DIRECTORY = "static";
   private static final String[] STATIC_ASSETS = {
     "bootstrap.min.css", "bootstrap-responsive.min.css", "bootstrap.min.js", "jquery.min.js",
@@ -47,26 +61,38 @@ public final class HtmlRenderer {
   private final File output;
   private boolean noresultjson;
   private boolean nohtml;
+  private final boolean archiveLogs;
 
-  public HtmlRenderer(SpoonSummary summary, Gson gson, File output, boolean noresultjson, boolean nohtml) {
+  /**
+   * @param archiveLogs Whether the logs of tests are compressed into an archive per device rather
+   *        than embedded in {@code result.json}.
+   */
+  public HtmlRenderer(SpoonSummary summary, Gson gson, File output, boolean noresultjson,
+      boolean nohtml, boolean archiveLogs) {
     this.summary = summary;
     this.gson = gson;
     this.output = output;
     this.noresultjson = noresultjson;
     this.nohtml = nohtml;
+    this.archiveLogs = archiveLogs;
   }
 
-  public HtmlRenderer(Gson gson, File input, File output, boolean noresultjson, boolean nohtml) throws FileNotFoundException {
+  public HtmlRenderer(Gson gson, File input, File output, boolean noresultjson, boolean nohtml,
+      boolean archiveLogs) throws FileNotFoundException {
       FileReader fr = new FileReader(input);
       this.summary = (SpoonSummary) gson.fromJson(fr, SpoonSummary.class);
+      this.summary.resolveArchivedLogs(input.getAbsoluteFile().getParentFile());
       this.gson = gson;
       this.output = output;
       this.noresultjson = noresultjson;
       this.nohtml = nohtml;
+      this.archiveLogs = archiveLogs;
   }
 
-  public HtmlRenderer aggregate(HtmlRenderer htmlr, File newoutput, boolean noresultjson, boolean nohtml){
-      return new HtmlRenderer(this.summary.aggregate(htmlr.summary), gson, newoutput, noresultjson, nohtml);
+  public HtmlRenderer aggregate(HtmlRenderer htmlr, File newoutput, boolean noresultjson,
+      boolean nohtml, boolean archiveLogs) {
+      return new HtmlRenderer(this.summary.aggregate(htmlr.summary), gson, newoutput, noresultjson,
+          nohtml, archiveLogs);
   }
 
   public void render() {
@@ -76,7 +102,8 @@ public final class HtmlRenderer {
       copyStaticAssets();
       generateCssFromLess();
     }
-    
+
+    storeLogs();
     if (!noresultjson) {
       writeResultJson();
     }
@@ -91,6 +118,66 @@ public final class HtmlRenderer {
     }
   }
 
+  /**
+   * Render a run which is still executing. The index page refreshes itself every
+   * {@code refreshSeconds} and lists the failures streamed to {@code events} so far. The device,
+   * test and log pages are only rendered when {@code includeResults} is set since they only
+   * change when a device finishes.
+   */
+  public void renderProgress(File events, String status, int refreshSeconds,
+      boolean includeResults) {
+    output.mkdirs();
+
+    if (!FileUtils.getFile(output, STATIC_DIRECTORY, "spoon.css").exists()) {
+      copyStaticAssets();
+      generateCssFromLess();
+    }
+
+    MustacheFactory mustacheFactory = new DefaultMustacheFactory();
+    HtmlIndex.Progress progress =
+        new HtmlIndex.Progress(refreshSeconds, status, readFailures(events));
+    Mustache mustache = mustacheFactory.compile("page/index.html");
+    renderMustacheToFile(mustache, HtmlIndex.from(summary, progress),
+        new File(output, INDEX_FILENAME));
+    if (includeResults) {
+      if (archiveLogs) {
+        archiveLogs();
+      }
+      generateDeviceHtml(mustacheFactory);
+      generateTestHtml(mustacheFactory);
+      generateLogHtml(mustacheFactory);
+    }
+  }
+
+  /** Read the failure events streamed by the devices so far. */
+  private static List<HtmlIndex.Failure> readFailures(File events) {
+    List<HtmlIndex.Failure> failures = new ArrayList<HtmlIndex.Failure>();
+    if (!events.exists()) {
+      return failures;
+    }
+    JsonParser parser = new JsonParser();
+    try {
+      for (String line : FileUtils.readLines(events, UTF_8.name())) {
+        JsonObject event;
+        try {
+          event = parser.parse(line).getAsJsonObject();
+        } catch (JsonParseException e) {
+          continue; // The last line may still be in the process of being written.
+        } catch (IllegalStateException e) {
+          continue;
+        }
+        if ("testFailed".equals(event.get("event").getAsString())) {
+          failures.add(new HtmlIndex.Failure(event.get("serial").getAsString(),
+              event.get("className").getAsString(), event.get("methodName").getAsString(),
+              event.get("trace").getAsString()));
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to read events from " + events, e);
+    }
+    return failures;
+  }
+
   private void copyStaticAssets() {
     File statics = new File(output, STATIC_DIRECTORY);
     statics.mkdir();
@@ -111,6 +198,61 @@ public final class HtmlRenderer {
     }
   }
 
+  /**
+   * Archive the logs when enabled and, with the HTML report, write the index of every log in the
+   * same pass so that each log is only read once. Without archiving, logs archived elsewhere, e.g.
+   * in the inputs of an aggregation, are put back inline since their archive is not part of this
+   * report.
+   */
+  private void storeLogs() {
+    LogIndex.Builder index = nohtml ? null : new LogIndex.Builder();
+    for (Map.Entry<String, DeviceResult> entry : summary.getResults().entrySet()) {
+      LogArchive archive = archiveLogs ? logArchive(entry.getKey()) : null;
+      for (Map.Entry<DeviceTest, DeviceTestResult> test
+          : entry.getValue().getTestResults().entrySet()) {
+        List<LogCatMessage> log = test.getValue().getLog();
+        if (index != null) {
+          index.add(entry.getKey(), test.getKey(), log);
+        }
+        if (archive != null) {
+          try {
+            test.getValue().archiveLog(archive, log);
+          } catch (IOException e) {
+            throw new RuntimeException("Unable to write log archive " + archive.getFile(), e);
+          }
+        } else {
+          test.getValue().inlineLog(log);
+        }
+      }
+    }
+    if (index == null) {
+      return;
+    }
+    try {
+      index.build().write(output);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to write " + LogIndex.FILENAME + " file.", e);
+    }
+  }
+
+  /** Compress the log of every test into the log archive of its device. */
+  private void archiveLogs() {
+    for (Map.Entry<String, DeviceResult> entry : summary.getResults().entrySet()) {
+      LogArchive archive = logArchive(entry.getKey());
+      for (DeviceTestResult testResult : entry.getValue().getTestResults().values()) {
+        try {
+          testResult.archiveLog(archive);
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to write log archive " + archive.getFile(), e);
+        }
+      }
+    }
+  }
+
+  private LogArchive logArchive(String serial) {
+    return new LogArchive(output, LOGS_DIRECTORY + "/" + serial + "/" + LOG_ARCHIVE);
+  }
+
   private void writeResultJson() {
     FileWriter result = null;
     try {
@@ -172,14 +314,39 @@ public final class HtmlRenderer {
       String name = (details != null) ? details.getName() : serial;
       for (Map.Entry<DeviceTest, DeviceTestResult> entry : result.getTestResults().entrySet()) {
         DeviceTest test = entry.getKey();
-        HtmlLog scope = HtmlLog.from(name, test, entry.getValue());
-        File file = FileUtils.getFile(output, "logs", serial, test.getClassName(),
+        File file = FileUtils.getFile(output, LOGS_DIRECTORY, serial, test.getClassName(),
             test.getMethodName() + ".html");
+        String script = null;
+        LogArchive.Entry archived = entry.getValue().getArchivedLog();
+        if (archived != null) {
+          script = writeLogScript(archived,
+              new File(file.getParentFile(), test.getMethodName() + ".js"));
+        }
+        HtmlLog scope = HtmlLog.from(name, test, entry.getValue(), script);
         renderMustacheToFile(mustache, scope, file);
       }
     }
   }
 
+  /**
+   * Write the still compressed log of {@code entry} as a script assigning it, base64 encoded, to
+   * {@code spoonLog}. Pages opened from disk can load scripts but not read other files, so this
+   * lets a log page decompress its log only once it is opened. Returns the URI of the script
+   * relative to the page.
+   */
+  private static String writeLogScript(LogArchive.Entry entry, File script) {
+    try {
+      String encoded = BaseEncoding.base64().encode(LogArchive.readCompressed(entry));
+      script.getParentFile().mkdirs();
+      Files.write("var spoonLog = \"" + encoded + "\";\n", script, UTF_8);
+      return new URI(null, null, "./" + script.getName(), null).getRawPath();
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to write log script " + script, e);
+    } catch (URISyntaxException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   private static void renderMustacheToFile(Mustache mustache, Object scope, File file) {
     FileWriter writer = null;
     try {
@@ -0,0 +1,36 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ChildJvmTest {
+  @Test public void optionsPrecedeMainClass() {
+    ChildJvm jvm = new ChildJvm(Arrays.asList("-Xmx1g", "-XX:+UseSerialGC"), null, false);
+    assertThat(jvm.command("a.jar", "com.example.Main", "work")).containsExactly("java",
+        "-Djava.awt.headless=true", "-Xmx1g", "-XX:+UseSerialGC", "-cp", "a.jar",
+        "com.example.Main", "work");
+  }
+
+  @Test public void archiveIsShared() {
+    File archive = new File("spoon.jsa");
+    ChildJvm jvm = new ChildJvm(Collections.<String>emptyList(), archive, false);
+    assertThat(jvm.command("a.jar", "com.example.Main")).containsExactly("java",
+        "-Djava.awt.headless=true", "-XX:+IgnoreUnrecognizedVMOptions",
+        "-XX:SharedArchiveFile=" + jvm.archiveFor("a.jar").getAbsolutePath(), "-cp", "a.jar",
+        "com.example.Main");
+  }
+
+  @Test public void archiveIsKeyedByClasspath() {
+    File archive = new File("spoon.jsa");
+    ChildJvm jvm = new ChildJvm(Collections.<String>emptyList(), archive, false);
+    File keyed = jvm.archiveFor("a.jar");
+    assertThat(keyed.getParentFile()).isEqualTo(archive.getAbsoluteFile().getParentFile());
+    assertThat(keyed.getName()).startsWith("spoon-").endsWith(".jsa").hasSize(26);
+    assertThat(jvm.archiveFor("a.jar")).isEqualTo(keyed);
+    assertThat(jvm.archiveFor("b.jar")).isNotEqualTo(keyed);
+  }
+}
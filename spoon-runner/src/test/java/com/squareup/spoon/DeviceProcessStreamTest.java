@@ -0,0 +1,85 @@
+package com.squareup.spoon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Map;
+import org.junit.Test;
+
+import static com.squareup.spoon.DeviceTestResult.Status;
+import static com.squareup.spoon.FramedChannel.Type;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DeviceProcessStreamTest {
+  private static final DeviceTest PASSED = new DeviceTest("com.example.FooTest", "passes");
+  private static final DeviceTest FAILED = new DeviceTest("com.example.FooTest", "fails");
+  private static final DeviceTest CRASHED = new DeviceTest("com.example.FooTest", "crashes");
+
+  @Test public void endedTestsSurviveProcessWithoutResult() throws Exception {
+    ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    FramedChannel child = new FramedChannel(null, stdout);
+    File events = File.createTempFile("events", ".ndjson");
+    events.deleteOnExit();
+    SpoonEventLog log = new SpoonEventLog(events, false, "emulator-5554", child);
+    child.send(Type.OUTPUT, "Installing...");
+    log.testStarted(PASSED);
+    log.testEnded(PASSED, Status.PASS);
+    log.testStarted(FAILED);
+    log.testFailed(FAILED, "java.lang.AssertionError: Nope");
+    log.testEnded(FAILED, Status.FAIL);
+    log.testStarted(CRASHED);
+    log.close();
+
+    DeviceProcessStream stream = new DeviceProcessStream("emulator-5554", false, false);
+    stream.read(new ByteArrayInputStream(stdout.toByteArray()));
+    assertThat(stream.getResult()).isNull();
+
+    DeviceResult result = stream.getPartialResult("Device process exited with code 1.");
+    assertThat(result.getExceptions()).hasSize(1);
+    Map<DeviceTest, DeviceTestResult> tests = result.getTestResults();
+    assertThat(tests).hasSize(3);
+    assertThat(tests.get(PASSED).getOverallStatus()).isEqualTo(Status.PASS);
+    assertThat(tests.get(FAILED).getOverallStatus()).isEqualTo(Status.FAIL);
+    assertThat(tests.get(FAILED).getException().get(0).getMessage()).isEqualTo("Nope");
+    assertThat(tests.get(CRASHED).getOverallStatus()).isEqualTo(Status.ERROR);
+  }
+
+  @Test public void eventsArePrintedByTheParent() throws Exception {
+    ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    File events = File.createTempFile("events", ".ndjson");
+    events.deleteOnExit();
+    SpoonEventLog log =
+        new SpoonEventLog(events, true, "emulator-5554", new FramedChannel(null, stdout));
+    PrintStream console = System.out;
+    ByteArrayOutputStream printed = new ByteArrayOutputStream();
+    System.setOut(new PrintStream(printed, true, "UTF-8"));
+    try {
+      log.testStarted(PASSED);
+      log.close();
+      assertThat(printed.size()).isEqualTo(0);
+
+      new DeviceProcessStream("emulator-5554", true, false)
+          .read(new ByteArrayInputStream(stdout.toByteArray()));
+    } finally {
+      System.setOut(console);
+    }
+    String line = printed.toString("UTF-8");
+    assertThat(line).startsWith("{\"event\":\"testStarted\"").contains("passes");
+  }
+
+  @Test public void resultFrameIsReturned() throws Exception {
+    ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+    FramedChannel child = new FramedChannel(null, stdout);
+    DeviceResult sent = new DeviceResult.Builder() //
+        .startTests() //
+        .addTestResultBuilder(PASSED, new DeviceTestResult.Builder().startTest().endTest()) //
+        .endTests() //
+        .build();
+    child.send(Type.RESULT, SpoonUtils.GSON.toJson(sent));
+
+    DeviceProcessStream stream = new DeviceProcessStream("emulator-5554", false, false);
+    stream.read(new ByteArrayInputStream(stdout.toByteArray()));
+    assertThat(stream.getResult().getTestResults()).containsKey(PASSED);
+  }
+}
@@ -0,0 +1,135 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.google.gson.JsonObject;
+import com.squareup.spoon.DeviceTestResult.Status;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class DeviceTestResultTest {
+  @Test public void mergeAppendsAttemptsWithoutChangingEither() {
+    DeviceTestResult first = new DeviceTestResult.Builder() //
+        .markTestAsFailed("java.fake.Exception: Failed!") //
+        .setLog(new ArrayList<LogCatMessage>(Arrays.asList(message("one")))) //
+        .setRunId("run") //
+        .build();
+    DeviceTestResult second = new DeviceTestResult.Builder() //
+        .setLog(new ArrayList<LogCatMessage>(Arrays.asList(message("two")))) //
+        .setRunId("run-retry-1") //
+        .build();
+
+    DeviceTestResult merged = first.merge(second);
+    assertThat(merged.getStatus()).containsExactly(Status.FAIL, Status.PASS);
+    assertThat(merged.getOverallStatus()).isEqualTo(Status.FAIL);
+    assertThat(merged.getFinalStatus()).isEqualTo(Status.PASS);
+    assertThat(merged.getException().get(0).getMessage()).isEqualTo("Failed!");
+    assertThat(merged.getException().get(1)).isNull();
+    assertThat(merged.getRunIds()).containsExactly("run", "run-retry-1");
+    assertThat(merged.getAttemptDurations()).containsExactly(-1L, -1L);
+    assertThat(texts(merged.getLog())).containsExactly("one --- end of id run", "two");
+
+    assertThat(first.getStatus()).containsExactly(Status.FAIL);
+    assertThat(texts(first.getLog())).containsExactly("one");
+    assertThat(second.getRunIds()).containsExactly("run-retry-1");
+  }
+
+  @Test public void retriesKeepTheScreenshotsOfEveryAttempt() {
+    DeviceTestResult first = new DeviceTestResult.Builder() //
+        .markTestAsFailed("java.fake.Exception: Failed!") //
+        .addScreenshot(new File("first.png")) //
+        .setAnimatedGif(new File("first.gif")) //
+        .build();
+    DeviceTestResult retry = new DeviceTestResult.Builder() //
+        .addScreenshot(new File("retry.png")) //
+        .setAnimatedGif(new File("retry.gif")) //
+        .build();
+
+    DeviceTestResult merged = first.retry(retry);
+    assertThat(merged.getScreenshots())
+        .containsExactly(new File("first.png"), new File("retry.png"));
+    assertThat(merged.getAnimatedGif()).isEqualTo(new File("retry.gif"));
+    assertThat(first.retry(new DeviceTestResult.Builder().build()).getAnimatedGif())
+        .isEqualTo(new File("first.gif"));
+  }
+
+  @Test public void jsonKeepsItsShape() {
+    DeviceTestResult merged = new DeviceTestResult.Builder() //
+        .markTestAsError("java.fake.Exception: Broken!") //
+        .setRunId("run") //
+        .build() //
+        .merge(new DeviceTestResult.Builder().setRunId("run-retry-1").build());
+
+    String json = SpoonUtils.GSON.toJson(merged);
+    JsonObject object = SpoonUtils.GSON.fromJson(json, JsonObject.class);
+    assertThat(object.get("status").toString()).isEqualTo("[\"ERROR\",\"PASS\"]");
+    assertThat(object.get("runIds").toString()).isEqualTo("[\"run\",\"run-retry-1\"]");
+    assertThat(object.get("duration").getAsLong()).isEqualTo(-1);
+    assertThat(object.has("attemptStatus")).isFalse();
+
+    DeviceTestResult read = SpoonUtils.GSON.fromJson(json, DeviceTestResult.class);
+    assertThat(read.getStatus()).containsExactly(Status.ERROR, Status.PASS);
+    assertThat(read.getException().get(0).getMessage()).isEqualTo("Broken!");
+    assertThat(read.getException().get(1)).isNull();
+    assertThat(read.getAttemptDurations()).containsExactly(-1L, -1L);
+    assertThat(read.getRunIds().get(1)).isSameAs(merged.getRunIds().get(1));
+  }
+
+  @Test public void readsResultsWithoutAttemptDurations() {
+    DeviceTestResult read = SpoonUtils.GSON.fromJson("{\"status\":[\"FAIL\",\"PASS\"],"
+        + "\"duration\":7,\"screenshots\":[],\"log\":[],\"droppedLogLines\":0}",
+        DeviceTestResult.class);
+    assertThat(read.getDuration()).isEqualTo(7);
+    assertThat(read.getAttemptDurations()).containsExactly(7L, 0L);
+    assertThat(read.getException()).hasSize(2);
+    assertThat(read.getRunIds()).containsExactly("test-id", "test-id");
+  }
+
+  @Test public void durationSkipsUntimedAttempts() {
+    DeviceTestResult read = SpoonUtils.GSON.fromJson("{\"status\":[\"FAIL\",\"PASS\"],"
+        + "\"attemptDurations\":[-1,4],\"screenshots\":[],\"log\":[],"
+        + "\"droppedLogLines\":0}", DeviceTestResult.class);
+    assertThat(read.getDuration()).isEqualTo(4);
+  }
+
+  @Test public void readsResultsWithMismatchedAttempts() {
+    DeviceTestResult read = SpoonUtils.GSON.fromJson("{\"status\":[\"FAIL\",\"PASS\"],"
+        + "\"exception\":[null],\"runIds\":[\"run\",\"run-2\",\"run-3\"],"
+        + "\"duration\":3,\"screenshots\":[],\"log\":[],\"droppedLogLines\":0}",
+        DeviceTestResult.class);
+    assertThat(read.getException()).hasSize(2);
+    assertThat(read.getRunIds()).containsExactly("run", "run-2");
+    assertThat(read.getAttemptDurations()).containsExactly(3L, 0L);
+
+    read = SpoonUtils.GSON.fromJson("{\"status\":[\"FAIL\",\"PASS\"],"
+        + "\"runIds\":[\"run\"],\"screenshots\":[],\"log\":[],\"droppedLogLines\":0}",
+        DeviceTestResult.class);
+    assertThat(read.getRunIds()).containsExactly("run", "run");
+    assertThat(read.getDuration()).isEqualTo(0);
+  }
+
+  @Test public void builderAcceptsRunIdLists() {
+    @SuppressWarnings("deprecation")
+    DeviceTestResult result = new DeviceTestResult.Builder() //
+        .setRunIds(Arrays.asList("run", "run-retry-1")) //
+        .build();
+    assertThat(result.getRunIds()).containsExactly("run-retry-1");
+  }
+
+  private static LogCatMessage message(String text) {
+    return new LogCatMessage(LogLevel.INFO, "1", "1", "app", "Tag", "01-01 00:00:00.000", text);
+  }
+
+  private static List<String> texts(List<LogCatMessage> messages) {
+    List<String> texts = new ArrayList<String>();
+    for (LogCatMessage message : messages) {
+      texts.add(message.getMessage());
+    }
+    return texts;
+  }
+}
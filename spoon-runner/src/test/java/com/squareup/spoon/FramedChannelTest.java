@@ -0,0 +1,71 @@
+package com.squareup.spoon;
+
+import com.google.common.io.Files;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import static com.squareup.spoon.FramedChannel.Frame;
+import static com.squareup.spoon.FramedChannel.Type;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class FramedChannelTest {
+  @Test public void framesRoundTrip() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    FramedChannel writer = new FramedChannel(null, bytes);
+    writer.send(Type.OUTPUT, "Hello\nSpoon ☃");
+    writer.send(Type.EXIT, "0");
+
+    FramedChannel reader =
+        new FramedChannel(new ByteArrayInputStream(bytes.toByteArray()), null);
+    Frame first = reader.receive();
+    assertThat(first.type).isEqualTo(Type.OUTPUT);
+    assertThat(first.payload).isEqualTo("Hello\nSpoon ☃");
+    Frame second = reader.receive();
+    assertThat(second.type).isEqualTo(Type.EXIT);
+    assertThat(second.payload).isEqualTo("0");
+    assertThat(reader.receive()).isNull();
+  }
+
+  @Test public void filesOverTheLimitAreRefused() throws IOException {
+    File directory = Files.createTempDir();
+    try {
+      File file = new File(directory, "big");
+      FileUtils.writeStringToFile(file, "0123456789");
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      new FramedChannel(null, bytes).sendFile("big", file);
+
+      FramedChannel reader =
+          new FramedChannel(new ByteArrayInputStream(bytes.toByteArray()), null);
+      assertThat(reader.receive().payload).isEqualTo("big");
+      File copy = new File(directory, "copy");
+      try {
+        reader.receiveFile(copy, 9);
+        fail();
+      } catch (IOException expected) {
+      }
+      assertThat(copy).doesNotExist();
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  @Test public void truncatedFrameThrows() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new FramedChannel(null, bytes).send(Type.OUTPUT, "truncated");
+    byte[] data = bytes.toByteArray();
+
+    FramedChannel reader =
+        new FramedChannel(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 2)), null);
+    try {
+      reader.receive();
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+}
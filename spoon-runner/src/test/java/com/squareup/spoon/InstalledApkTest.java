@@ -0,0 +1,24 @@
+package com.squareup.spoon;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class InstalledApkTest {
+  @Test public void packagePath() {
+    assertThat(InstalledApk.parsePackagePath("package:/data/app/com.example-1.apk\r\n"))
+        .isEqualTo("/data/app/com.example-1.apk");
+    assertThat(InstalledApk.parsePackagePath("")).isNull();
+    // Split APKs cannot be compared against a single local file.
+    assertThat(InstalledApk.parsePackagePath(
+        "package:/data/app/com.example-1/base.apk\npackage:/data/app/com.example-1/split.apk\n"))
+        .isNull();
+  }
+
+  @Test public void md5() {
+    assertThat(InstalledApk.parseMd5("D41D8CD98F00B204E9800998ECF8427E  /data/app/a.apk\n"))
+        .isEqualTo("d41d8cd98f00b204e9800998ecf8427e");
+    assertThat(InstalledApk.parseMd5("/system/bin/sh: md5sum: not found\n")).isNull();
+    assertThat(InstalledApk.parseMd5("md5sum: /data/app/a.apk: Permission denied")).isNull();
+  }
+}
@@ -0,0 +1,116 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LogArchiveTest {
+  private final File directory = Files.createTempDir();
+
+  @After public void tearDown() throws Exception {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Test public void logsAreReadBackByEntry() throws Exception {
+    LogArchive archive = new LogArchive(directory, "logs/serial/log.gz");
+    LogArchive.Entry first = archive.append(Arrays.asList(
+        message(LogLevel.INFO, "Tag", "first ☃"), message(LogLevel.ERROR, null, "a\nb\t\"c\"")));
+    LogArchive.Entry second = archive.append(Arrays.asList(message(LogLevel.ASSERT, "Tag", "")));
+
+    assertThat(first.getOffset()).isEqualTo(0);
+    assertThat(second.getOffset()).isEqualTo(first.getLength());
+    assertThat(archive.getFile().length()).isEqualTo(first.getLength() + second.getLength());
+
+    List<LogCatMessage> log = LogArchive.read(first);
+    assertThat(log).hasSize(2);
+    assertThat(log.get(0).getLogLevel()).isEqualTo(LogLevel.INFO);
+    assertThat(log.get(0).getMessage()).isEqualTo("first ☃");
+    assertThat(log.get(0).getPid()).isEqualTo("12");
+    assertThat(log.get(0).getAppName()).isEqualTo("app");
+    assertThat(log.get(1).getTag()).isNull();
+    assertThat(log.get(1).getMessage()).isEqualTo("a\nb\t\"c\"");
+
+    List<LogCatMessage> other = LogArchive.read(second);
+    assertThat(other).hasSize(1);
+    assertThat(other.get(0).getLogLevel()).isEqualTo(LogLevel.ASSERT);
+  }
+
+  @Test public void resultsReferToTheirArchivedLog() throws Exception {
+    List<LogCatMessage> log = new ArrayList<LogCatMessage>();
+    log.add(message(LogLevel.DEBUG, "Tag", "hello"));
+    DeviceTestResult result = new DeviceTestResult.Builder().setLog(log).build();
+    LogArchive archive = new LogArchive(directory, "logs/serial/log.gz");
+
+    result.archiveLog(archive);
+    LogArchive.Entry entry = result.getArchivedLog();
+    assertThat(entry.getCount()).isEqualTo(1);
+    assertThat(result.getLog()).hasSize(1);
+    // Archiving again into the same archive leaves it alone.
+    result.archiveLog(archive);
+    assertThat(result.getArchivedLog()).isSameAs(entry);
+
+    String json = SpoonUtils.GSON.toJson(result);
+    assertThat(json).doesNotContain("hello").doesNotContain(directory.getPath());
+    DeviceTestResult copy = SpoonUtils.GSON.fromJson(json, DeviceTestResult.class);
+    copy.resolveArchivedLog(directory);
+    assertThat(copy.getLog().get(0).getMessage()).isEqualTo("hello");
+  }
+
+  @Test public void logsOfMovedReportsAreEmpty() throws Exception {
+    List<LogCatMessage> log = new ArrayList<LogCatMessage>();
+    log.add(message(LogLevel.DEBUG, "Tag", "hello"));
+    DeviceTestResult result = new DeviceTestResult.Builder().setLog(log).build();
+    result.archiveLog(new LogArchive(directory, "logs/serial/log.gz"));
+
+    String json = SpoonUtils.GSON.toJson(result);
+    DeviceTestResult unresolved = SpoonUtils.GSON.fromJson(json, DeviceTestResult.class);
+    assertThat(unresolved.getLog()).isEmpty();
+    DeviceTestResult moved = SpoonUtils.GSON.fromJson(json, DeviceTestResult.class);
+    moved.resolveArchivedLog(new File(directory, "elsewhere"));
+    assertThat(moved.getLog()).isEmpty();
+  }
+
+  @Test public void inlinedLogsAreWrittenToResults() throws Exception {
+    List<LogCatMessage> log = new ArrayList<LogCatMessage>();
+    log.add(message(LogLevel.DEBUG, "Tag", "hello"));
+    DeviceTestResult result = new DeviceTestResult.Builder().setLog(log).build();
+    result.archiveLog(new LogArchive(directory, "logs/serial/log.gz"));
+    result.inlineLog(result.getLog());
+    assertThat(result.getArchivedLog()).isNull();
+
+    DeviceTestResult read =
+        SpoonUtils.GSON.fromJson(SpoonUtils.GSON.toJson(result), DeviceTestResult.class);
+    assertThat(read.getLog()).hasSize(1);
+    assertThat(read.getLog().get(0).getMessage()).isEqualTo("hello");
+  }
+
+  @Test public void entriesAreStandaloneGzipMembers() throws Exception {
+    LogArchive archive = new LogArchive(directory, "logs/serial/log.gz");
+    archive.append(Arrays.asList(message(LogLevel.INFO, "Tag", "first")));
+    LogArchive.Entry second = archive.append(Arrays.asList(message(LogLevel.WARN, "Tag", "two")));
+
+    // Log pages decompress the member on its own, as the browser sees it.
+    GZIPInputStream in =
+        new GZIPInputStream(new ByteArrayInputStream(LogArchive.readCompressed(second)));
+    String text = new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+    assertThat(text).isEqualTo(
+        "[\"W\",\"12\",\"34\",\"app\",\"Tag\",\"01-01 00:00:00.000\",\"two\"]\n");
+  }
+
+  private static LogCatMessage message(LogLevel level, String tag, String text) {
+    return new LogCatMessage(level, "12", "34", "app", tag, "01-01 00:00:00.000", text);
+  }
+}
@@ -0,0 +1,110 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Compares the throughput and allocations of {@link LogFilter#accepts} with the split, wrap and
+ * search the log receiver used to do for every message. Run its {@code main} method; it is not
+ * part of the tests. Allocations are only reported on JVMs which count them per thread.
+ */
+public final class LogFilterBenchmark {
+  private static final int MESSAGES = 1000000;
+  private static final int ROUNDS = 10;
+  private static final String FILTER = "Spoon&OkHttp&Retrofit&Picasso&Dagger&MyApp";
+
+  public static void main(String... args) {
+    String[] tags = new String[MESSAGES];
+    for (int i = 0; i < MESSAGES; i++) {
+      switch (i % 4) {
+        case 0:
+          tags[i] = "Tag" + i % 100;
+          break;
+        case 1:
+          tags[i] = "MyApp";
+          break;
+        case 2:
+          tags[i] = "Tag" + i % 100 + "&Network&Picasso";
+          break;
+        default:
+          tags[i] = "ActivityManager";
+      }
+    }
+    LogFilter filter = LogFilter.parse(FILTER, null, Collections.<String>emptyList());
+    List<String> filterTags = new LinkedList<String>(Arrays.asList(FILTER.split("&")));
+
+    for (int round = 0; round < ROUNDS; round++) {
+      long bytes = allocatedBytes();
+      long start = System.nanoTime();
+      int accepted = acceptFilter(filter, tags);
+      long filterNanos = System.nanoTime() - start;
+      long filterBytes = allocatedBytes() - bytes;
+
+      bytes = allocatedBytes();
+      start = System.nanoTime();
+      int split = acceptSplit(filterTags, tags);
+      long splitNanos = System.nanoTime() - start;
+      long splitBytes = allocatedBytes() - bytes;
+
+      System.out.println(String.format(
+          "Round %d: filter %,d msg/s %,d B/msg (%d), split %,d msg/s %,d B/msg (%d)", round,
+          rate(MESSAGES, filterNanos), filterBytes / MESSAGES, accepted,
+          rate(MESSAGES, splitNanos), splitBytes / MESSAGES, split));
+    }
+  }
+
+  private static int acceptFilter(LogFilter filter, String[] tags) {
+    int count = 0;
+    for (String tag : tags) {
+      if (filter.accepts(tag, LogLevel.INFO, "1234")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** What the log receiver did before {@link LogFilter}. */
+  private static int acceptSplit(List<String> filterTags, String[] tags) {
+    int count = 0;
+    for (String tag : tags) {
+      List<String> curTags = Arrays.asList(tag.split("&"));
+      if (nonEmptyIntersection(filterTags, curTags) || curTags.contains("TestRunner")) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static boolean nonEmptyIntersection(List<String> one, List<String> two) {
+    for (String tag : one) {
+      if (two.contains(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Bytes allocated by this thread so far, or 0 when the JVM does not count them. */
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) threads;
+      if (counting.isThreadAllocatedMemorySupported()) {
+        return counting.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return 0;
+  }
+
+  private static long rate(int messages, long nanos) {
+    return messages * 1000000000L / Math.max(1, nanos);
+  }
+
+  private LogFilterBenchmark() {
+  }
+}
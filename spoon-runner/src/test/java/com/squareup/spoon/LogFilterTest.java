@@ -0,0 +1,67 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LogFilterTest {
+  @Test public void noRestrictionsKeepEverything() {
+    LogFilter filter = LogFilter.parse(null, null, null);
+    assertThat(filter.accepts("Anything", LogLevel.VERBOSE, "1")).isTrue();
+    assertThat(filter.accepts("", LogLevel.VERBOSE, "1")).isTrue();
+  }
+
+  @Test public void anyOfTheTagsMatches() {
+    LogFilter filter = LogFilter.parse("Network&Database", null, null);
+    assertThat(filter.accepts("Network", LogLevel.DEBUG, "1")).isTrue();
+    assertThat(filter.accepts("Ui&Database", LogLevel.DEBUG, "1")).isTrue();
+    assertThat(filter.accepts("Database&Ui", LogLevel.DEBUG, "1")).isTrue();
+    assertThat(filter.accepts("Ui", LogLevel.DEBUG, "1")).isFalse();
+    assertThat(filter.accepts("NetworkStack", LogLevel.DEBUG, "1")).isFalse();
+    assertThat(filter.accepts("Net", LogLevel.DEBUG, "1")).isFalse();
+    assertThat(filter.accepts("", LogLevel.DEBUG, "1")).isFalse();
+  }
+
+  @Test public void levelAndPidRestrict() {
+    LogFilter filter = LogFilter.parse("Network", LogLevel.WARN, Arrays.asList("42"));
+    assertThat(filter.accepts("Network", LogLevel.ERROR, "42")).isTrue();
+    assertThat(filter.accepts("Network", LogLevel.INFO, "42")).isFalse();
+    assertThat(filter.accepts("Network", LogLevel.ERROR, "7")).isFalse();
+
+    LogFilter levelOnly = LogFilter.parse(null, LogLevel.INFO, null);
+    assertThat(levelOnly.accepts("Anything", LogLevel.INFO, "1")).isTrue();
+    assertThat(levelOnly.accepts("Anything", LogLevel.DEBUG, "1")).isFalse();
+  }
+
+  @Test public void testRunnerAlwaysPasses() {
+    LogFilter filter = LogFilter.parse("Network", LogLevel.ERROR, Arrays.asList("42"));
+    assertThat(filter.accepts("TestRunner", LogLevel.INFO, "7")).isTrue();
+    assertThat(filter.accepts("Ui&TestRunner", LogLevel.INFO, "7")).isTrue();
+    assertThat(filter.accepts("TestRunners", LogLevel.INFO, "7")).isFalse();
+  }
+
+  @Test public void filterspec() {
+    assertThat(LogFilter.parse(null, null, null).toFilterspec()).isEmpty();
+    assertThat(LogFilter.parse("Network", null, null).toFilterspec()).isEmpty();
+    assertThat(LogFilter.parse("Network", LogLevel.WARN, null).toFilterspec())
+        .isEqualTo("TestRunner:V '*:W'");
+    assertThat(LogFilter.parse("Network&Database", LogLevel.INFO, null, true).toFilterspec())
+        .isEqualTo("TestRunner:V Network:I Database:I '*:S'");
+    assertThat(LogFilter.parse("Network&TestRunner", null, null, true).toFilterspec())
+        .isEqualTo("TestRunner:V Network:V '*:S'");
+    // Tags the device shell would interpret are left to the host.
+    assertThat(LogFilter.parse("Net work", null, null, true).toFilterspec()).isEmpty();
+    assertThat(LogFilter.parse("Net;rm", LogLevel.ERROR, null, true).toFilterspec())
+        .isEqualTo("TestRunner:V '*:E'");
+  }
+
+  @Test public void survivesSerialization() {
+    LogFilter filter = LogFilter.parse("Network&Database", LogLevel.INFO, null);
+    LogFilter copy = SpoonUtils.GSON.fromJson(SpoonUtils.GSON.toJson(filter), LogFilter.class);
+    assertThat(copy.accepts("Database", LogLevel.INFO, "1")).isTrue();
+    assertThat(copy.accepts("Database", LogLevel.DEBUG, "1")).isFalse();
+    assertThat(copy.accepts("Ui", LogLevel.INFO, "1")).isFalse();
+  }
+}
@@ -0,0 +1,82 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LogIndexTest {
+  private static final DeviceTest FIRST = new DeviceTest("com.example.FooTest", "first");
+  private static final DeviceTest SECOND = new DeviceTest("com.example.FooTest", "second");
+  private static final DeviceTest EMPTY = new DeviceTest("com.example.FooTest", "empty");
+
+  @Test public void terms() {
+    LogCatMessage message = new LogCatMessage(LogLevel.ERROR, "42", "43", "app", "Net&Ui",
+        "time", "Connection refused: host=Example.com");
+    assertThat(LogIndex.terms(message)).containsExactly("tag:net", "tag:ui", "level:e", "pid:42",
+        "connection", "refused", "host", "example", "com");
+    assertThat(LogIndex.queryTerms(" level:Error  tag:Net refused, pid:42 "))
+        .containsExactly("level:e", "tag:net", "refused", "pid:42");
+  }
+
+  @Test public void queriesMatchAllTermsAcrossTests() {
+    LogIndex index = new LogIndex.Builder()
+        .add("a", FIRST, Arrays.asList(
+            message(LogLevel.INFO, "Net", "connecting"),
+            message(LogLevel.ERROR, "Net", "connection refused")))
+        .add("a", EMPTY, Collections.<LogCatMessage>emptyList())
+        .add("b", SECOND, Arrays.asList(
+            message(LogLevel.ERROR, "Db", "refused refused"),
+            message(LogLevel.ERROR, "Net", "Connection REFUSED")))
+        .build();
+
+    List<String> hits = hits(index, "refused level:e tag:net");
+    assertThat(hits).containsExactly("a first 1", "b second 1");
+    assertThat(hits(index, "refused")).containsExactly("a first 1", "b second 0", "b second 1");
+    assertThat(hits(index, "refused tag:missing")).isEmpty();
+    assertThat(hits(index, "  ")).isEmpty();
+  }
+
+  @Test public void survivesWritingAndReading() throws Exception {
+    List<LogCatMessage> log = new ArrayList<LogCatMessage>();
+    for (int i = 0; i < 1000; i++) {
+      log.add(message(i % 10 == 0 ? LogLevel.ERROR : LogLevel.DEBUG, "Tag", "message " + i));
+    }
+    LogIndex index = new LogIndex.Builder()
+        .add("a", EMPTY, Collections.<LogCatMessage>emptyList())
+        .add("a", FIRST, log)
+        .add("b", SECOND, log)
+        .build();
+
+    File directory = Files.createTempDir();
+    try {
+      index.write(directory);
+      LogIndex copy = LogIndex.read(directory);
+      assertThat(hits(copy, "level:e message")).isEqualTo(hits(index, "level:e message"))
+          .hasSize(200);
+      assertThat(hits(copy, "990")).containsExactly("a first 990", "b second 990");
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  private static List<String> hits(LogIndex index, String query) {
+    List<String> hits = new ArrayList<String>();
+    for (LogIndex.Hit hit : index.query(query)) {
+      hits.add(hit.serial + " " + hit.test.getMethodName() + " " + hit.line);
+    }
+    return hits;
+  }
+
+  private static LogCatMessage message(LogLevel level, String tag, String text) {
+    return new LogCatMessage(level, "1", "1", "app", tag, "01-01 00:00:00.000", text);
+  }
+}
@@ -0,0 +1,66 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LogStoreTest {
+  @Test public void rangesSpanSegments() throws Exception {
+    File directory = Files.createTempDir();
+    try {
+      // Small segments so that records regularly move on to the next one.
+      LogStore store = new LogStore(directory, 256);
+      List<Long> positions = new ArrayList<Long>();
+      for (int i = 0; i < 100; i++) {
+        positions.add(store.append(message(i)));
+      }
+      assertThat(directory.list().length).isGreaterThan(10);
+
+      List<LogCatMessage> range = store.range(positions.get(40), 30);
+      assertThat(range).hasSize(30);
+      int i = 40;
+      for (LogCatMessage message : range) {
+        assertThat(message.getMessage()).isEqualTo("Message ☃ " + i);
+        assertThat(message.getPid()).isEqualTo(Integer.toString(i));
+        i++;
+      }
+      assertThat(i).isEqualTo(70);
+
+      LogCatMessage last = range.get(29);
+      assertThat(last.getLogLevel()).isEqualTo(LogLevel.WARN);
+      assertThat(last.getTag()).isEqualTo("Tag");
+      assertThat(last.getAppName()).isNull();
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  @Test public void longMessagesAreTruncatedToFitSegment() throws Exception {
+    File directory = Files.createTempDir();
+    try {
+      LogStore store = new LogStore(directory, 256);
+      StringBuilder message = new StringBuilder();
+      for (int i = 0; i < 1000; i++) {
+        message.append('x');
+      }
+      long position = store.append(
+          new LogCatMessage(LogLevel.INFO, "1", "2", "app", "Tag", "time", message.toString()));
+      assertThat(store.range(position, 1).get(0).getMessage()).hasSize(128);
+    } finally {
+      FileUtils.deleteDirectory(directory);
+    }
+  }
+
+  private static LogCatMessage message(int i) {
+    LogLevel level = i % 2 == 0 ? LogLevel.DEBUG : LogLevel.WARN;
+    return new LogCatMessage(level, Integer.toString(i), "1", null, "Tag", "01-01 00:00:00.000",
+        "Message ☃ " + i);
+  }
+}
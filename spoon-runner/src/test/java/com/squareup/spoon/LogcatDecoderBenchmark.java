@@ -0,0 +1,76 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.logcat.LogCatMessageParser;
+import java.io.ByteArrayOutputStream;
+import java.util.TimeZone;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+/**
+ * Compares the throughput of decoding {@code logcat -B} with parsing {@code logcat -v long}, for
+ * the same messages delivered in the chunks a shell receiver gets. Run its {@code main} method;
+ * it is not part of the tests.
+ */
+public final class LogcatDecoderBenchmark {
+  private static final int MESSAGES = 200000;
+  private static final int CHUNK = 16 * 1024;
+  private static final int ROUNDS = 10;
+
+  public static void main(String... args) {
+    ByteArrayOutputStream binary = new ByteArrayOutputStream();
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < MESSAGES; i++) {
+      String message = "Message number " + i + " from the benchmark with some typical length";
+      byte[] entry = LogcatDecoderTest.entry(24, 4, 1234, 5678, i / 1000, i % 1000 * 1000000,
+          "Benchmark", message);
+      binary.write(entry, 0, entry.length);
+      text.append(String.format("[ 01-01 00:00:%02d.%03d  1234: 5678 I/Benchmark ]\n%s\n\n",
+          i / 1000 % 60, i % 1000, message));
+    }
+    byte[] binaryBytes = binary.toByteArray();
+    byte[] textBytes = text.toString().getBytes(UTF_8);
+
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      int decoded = decodeBinary(binaryBytes);
+      long binaryNanos = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      int parsed = parseText(textBytes);
+      long textNanos = System.nanoTime() - start;
+
+      System.out.println(String.format("Round %d: binary %,d msg/s (%d), text %,d msg/s (%d)",
+          round, rate(decoded, binaryNanos), decoded, rate(parsed, textNanos), parsed));
+    }
+  }
+
+  private static int decodeBinary(byte[] data) {
+    LogcatDecoder decoder = new LogcatDecoder(null, false, TimeZone.getTimeZone("UTC"));
+    int count = 0;
+    for (int i = 0; i < data.length; i += CHUNK) {
+      count += decoder.decode(data, i, Math.min(CHUNK, data.length - i)).size();
+    }
+    return count;
+  }
+
+  /** What {@code MultiLineReceiver} and {@link LogCatMessageParser} do with the text output. */
+  private static int parseText(byte[] data) {
+    LogCatMessageParser parser = new LogCatMessageParser();
+    int count = 0;
+    String unfinished = "";
+    for (int i = 0; i < data.length; i += CHUNK) {
+      String chunk = unfinished + new String(data, i, Math.min(CHUNK, data.length - i), UTF_8);
+      int end = chunk.lastIndexOf('\n');
+      unfinished = chunk.substring(end + 1);
+      count += parser.processLogLines(chunk.substring(0, end).split("\n", -1), null).size();
+    }
+    return count;
+  }
+
+  private static long rate(int messages, long nanos) {
+    return messages * 1000000000L / Math.max(1, nanos);
+  }
+
+  private LogcatDecoderBenchmark() {
+  }
+}
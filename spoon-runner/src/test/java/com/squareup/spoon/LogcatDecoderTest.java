@@ -0,0 +1,114 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import org.junit.Test;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LogcatDecoderTest {
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  @Test public void decodesEntriesOfEveryHeaderVersion() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    write(out,
+        entry(0, 4, 12, 34, 0, 5000000, "TestRunner", "started: first(com.example.FooTest)"));
+    write(out, entry(24, 6, 12, 35, 1, 123000000, "Net", "refused ☃\n"));
+    write(out, entry(28, 7, 13, 36, 2, 0, " Crash ", "line one\nline two"));
+
+    List<LogCatMessage> messages = new LogcatDecoder(null, false, UTC).decode(out.toByteArray(), 0,
+        out.size());
+    assertThat(texts(messages)).containsExactly("started: first(com.example.FooTest)",
+        "refused ☃", "line one", "line two");
+
+    LogCatMessage first = messages.get(0);
+    assertThat(first.getLogLevel()).isEqualTo(LogLevel.INFO);
+    assertThat(first.getTag()).isEqualTo("TestRunner");
+    assertThat(first.getPid()).isEqualTo("12");
+    assertThat(first.getTid()).isEqualTo("34");
+    assertThat(first.getTime()).isEqualTo("01-01 00:00:00.005");
+    assertThat(messages.get(1).getLogLevel()).isEqualTo(LogLevel.ERROR);
+    assertThat(messages.get(1).getTime()).endsWith(".123");
+    assertThat(messages.get(2).getLogLevel()).isEqualTo(LogLevel.ASSERT);
+    assertThat(messages.get(2).getTag()).isEqualTo("Crash");
+    assertThat(messages.get(3).getPid()).isEqualTo("13");
+  }
+
+  @Test public void timesAreInTheDeviceTimeZone() {
+    byte[] data = entry(24, 4, 1, 1, 0, 0, "Tag", "midnight in London");
+    LogcatDecoder decoder =
+        new LogcatDecoder(null, false, LogcatDecoder.timeZone("America/New_York"));
+    assertThat(decoder.decode(data, 0, data.length).get(0).getTime())
+        .isEqualTo("12-31 19:00:00.000");
+
+    assertThat(LogcatDecoder.timeZone(null).getID()).isEqualTo("GMT");
+    assertThat(LogcatDecoder.timeZone("").getID()).isEqualTo("GMT");
+  }
+
+  @Test public void entriesMaySpanChunks() {
+    byte[] data = entry(24, 3, 1, 1, 0, 0, "Tag", "split somewhere");
+    LogcatDecoder decoder = new LogcatDecoder(null, false, UTC);
+    List<String> texts = new ArrayList<String>();
+    for (int i = 0; i < data.length; i += 7) {
+      texts.addAll(texts(decoder.decode(data, i, Math.min(7, data.length - i))));
+    }
+    assertThat(texts).containsExactly("split somewhere");
+  }
+
+  @Test public void undoesTerminalLineEndings() {
+    // The payload length and pid of 10 are line feeds, the tid of 13 a carriage return.
+    byte[] entry = entry(0, 4, 10, 13, 0, 0, "Tag", "a\r\nb");
+    ByteArrayOutputStream terminal = new ByteArrayOutputStream();
+    for (byte b : entry) {
+      if (b == '\n') {
+        terminal.write('\r');
+      }
+      terminal.write(b);
+    }
+    byte[] data = terminal.toByteArray();
+
+    LogcatDecoder decoder = new LogcatDecoder(null, true, UTC);
+    List<LogCatMessage> messages = new ArrayList<LogCatMessage>();
+    for (int i = 0; i < data.length; i++) {
+      // A byte at a time so that carriage returns end chunks.
+      messages.addAll(decoder.decode(data, i, 1));
+    }
+    assertThat(texts(messages)).containsExactly("a\r", "b");
+    assertThat(messages.get(0).getPid()).isEqualTo("10");
+    assertThat(messages.get(0).getTid()).isEqualTo("13");
+  }
+
+  /** A {@code logger_entry} with a header of {@code headerSize} bytes, {@code 0} for version 1. */
+  static byte[] entry(int headerSize, int priority, int pid, int tid, int seconds, int nanos,
+      String tag, String message) {
+    byte[] tagBytes = tag.getBytes(UTF_8);
+    byte[] messageBytes = message.getBytes(UTF_8);
+    int payload = 1 + tagBytes.length + 1 + messageBytes.length + 1;
+    int header = headerSize == 0 ? 20 : headerSize;
+    ByteBuffer buffer = ByteBuffer.allocate(header + payload).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putShort((short) payload).putShort((short) headerSize)
+        .putInt(pid).putInt(tid).putInt(seconds).putInt(nanos);
+    buffer.position(header);
+    buffer.put((byte) priority).put(tagBytes).put((byte) 0).put(messageBytes).put((byte) 0);
+    return buffer.array();
+  }
+
+  private static void write(ByteArrayOutputStream out, byte[] data) {
+    out.write(data, 0, data.length);
+  }
+
+  private static List<String> texts(List<LogCatMessage> messages) {
+    List<String> texts = new ArrayList<String>();
+    for (LogCatMessage message : messages) {
+      texts.add(message.getMessage());
+    }
+    return texts;
+  }
+}
@@ -0,0 +1,102 @@
+package com.squareup.spoon;
+
+import com.android.ddmlib.Log.LogLevel;
+import com.android.ddmlib.logcat.LogCatMessage;
+import com.google.common.io.Files;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class LogcatSegmenterTest {
+  private static final DeviceTest FIRST = new DeviceTest("com.example.FooTest", "first");
+  private static final DeviceTest SECOND = new DeviceTest("com.example.FooTest", "second");
+
+  private final File directory = Files.createTempDir();
+
+  @After public void tearDown() throws Exception {
+    FileUtils.deleteDirectory(directory);
+  }
+
+  @Test public void parseTest() {
+    assertThat(LogcatSegmenter.parseTest("started: ", "started: first(com.example.FooTest)"))
+        .isEqualTo(FIRST);
+    assertThat(LogcatSegmenter.parseTest("finished: ", "finished: first(com.example.FooTest)"))
+        .isEqualTo(FIRST);
+    assertThat(LogcatSegmenter.parseTest("started: ", "finished: first(com.example.FooTest)"))
+        .isNull();
+    assertThat(LogcatSegmenter.parseTest("started: ", "started: (com.example.FooTest)")).isNull();
+    assertThat(LogcatSegmenter.parseTest("started: ", "started: first()")).isNull();
+    assertThat(LogcatSegmenter.parseTest("started: ", "started: first(a)b)")).isNull();
+    assertThat(LogcatSegmenter.parseTest("started: ", "started: first")).isNull();
+  }
+
+  @Test public void logsAreSplitByTest() {
+    LogcatSegmenter segmenter = new LogcatSegmenter(new LogStore(directory, 512));
+    segmenter.add(message("App", "before any test"));
+    segmenter.add(message("TestRunner", "started: first(com.example.FooTest)"));
+    segmenter.add(message("App", "in first"));
+    segmenter.add(message("TestRunner", "finished: first(com.example.FooTest)"));
+    segmenter.add(message("App", "between tests"));
+    segmenter.add(message("TestRunner", "started: second(com.example.FooTest)"));
+    segmenter.add(message("App", "in second"));
+
+    Map<DeviceTest, List<LogCatMessage>> all = segmenter.finish();
+    assertThat(all.keySet()).containsOnly(FIRST, SECOND);
+    assertThat(texts(all.get(FIRST))).containsExactly(
+        "started: first(com.example.FooTest)", "in first", "finished: first(com.example.FooTest)");
+    assertThat(texts(all.get(SECOND)))
+        .containsExactly("started: second(com.example.FooTest)", "in second");
+  }
+
+  @Test public void headAndTailAreKeptAroundDroppedLines() {
+    LogcatSegmenter segmenter =
+        new LogcatSegmenter(new LogStore(directory, 512), new LogLimits(2, 3, 0));
+    segmenter.add(message("TestRunner", "started: first(com.example.FooTest)"));
+    for (int i = 0; i < 10; i++) {
+      segmenter.add(message("App", "line " + i));
+    }
+    segmenter.add(message("TestRunner", "finished: first(com.example.FooTest)"));
+    // Limits apply to each test afresh, and a test which fits loses nothing.
+    segmenter.add(message("TestRunner", "started: second(com.example.FooTest)"));
+    segmenter.add(message("App", "only line"));
+
+    Map<DeviceTest, List<LogCatMessage>> all = segmenter.finish();
+    assertThat(texts(all.get(FIRST))).containsExactly(
+        "started: first(com.example.FooTest)", "line 0", "line 1", "5 log lines dropped",
+        "line 7", "line 8", "line 9", "finished: first(com.example.FooTest)");
+    assertThat(segmenter.getDroppedLines().get(FIRST)).isEqualTo(5);
+    assertThat(texts(all.get(SECOND)))
+        .containsExactly("started: second(com.example.FooTest)", "only line");
+    assertThat(segmenter.getDroppedLines().keySet()).containsOnly(FIRST);
+  }
+
+  @Test public void bytesLimitHeadAndTail() {
+    LogcatSegmenter segmenter =
+        new LogcatSegmenter(new LogStore(directory, 512), new LogLimits(0, 0, 20));
+    segmenter.add(message("TestRunner", "started: first(com.example.FooTest)"));
+    for (int i = 0; i < 10; i++) {
+      segmenter.add(message("App", "line " + i)); // 9 bytes with the tag.
+    }
+    assertThat(texts(segmenter.finish().get(FIRST))).containsExactly(
+        "started: first(com.example.FooTest)", "line 0", "line 1", "6 log lines dropped",
+        "line 8", "line 9");
+  }
+
+  private static LogCatMessage message(String tag, String text) {
+    return new LogCatMessage(LogLevel.INFO, "1", "1", "app", tag, "01-01 00:00:00.000", text);
+  }
+
+  private static List<String> texts(List<LogCatMessage> messages) {
+    List<String> texts = new ArrayList<String>();
+    for (LogCatMessage message : messages) {
+      texts.add(message.getMessage());
+    }
+    return texts;
+  }
+}
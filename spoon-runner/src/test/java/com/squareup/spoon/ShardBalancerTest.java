@@ -0,0 +1,100 @@
+package com.squareup.spoon;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ShardBalancerTest {
+  private static final DeviceTest A1 = new DeviceTest("A", "one");
+  private static final DeviceTest A2 = new DeviceTest("A", "two");
+  private static final DeviceTest A3 = new DeviceTest("A", "three");
+  private static final DeviceTest B1 = new DeviceTest("B", "one");
+  private static final DeviceTest B2 = new DeviceTest("B", "two");
+  private static final DeviceTest C1 = new DeviceTest("C", "one");
+
+  @Test public void longestTestsAreSpreadFirst() {
+    Map<DeviceTest, Long> durations = new HashMap<DeviceTest, Long>();
+    durations.put(A1, 300L);
+    durations.put(A2, 300L);
+    durations.put(A3, 300L);
+    durations.put(B1, 100L);
+    durations.put(B2, 100L);
+    durations.put(C1, 100L);
+
+    List<List<DeviceTest>> shards =
+        ShardBalancer.balance(Arrays.asList(B1, B2, C1, A1, A2, A3), durations, 3);
+    assertThat(shards).hasSize(3);
+    assertThat(shards.get(0)).containsExactly(A1, B1);
+    assertThat(shards.get(1)).containsExactly(A3, B2);
+    assertThat(shards.get(2)).containsExactly(A2, C1);
+  }
+
+  @Test public void unknownTestsUseClassAverage() {
+    Map<DeviceTest, Long> durations = new HashMap<DeviceTest, Long>();
+    durations.put(A1, 100L);
+    durations.put(B1, 10L);
+
+    // A2 is estimated at 100 seconds and must not share a shard with A1.
+    List<List<DeviceTest>> shards =
+        ShardBalancer.balance(Arrays.asList(A1, A2, B1, B2), durations, 2);
+    assertThat(shards.get(0)).containsExactly(A1, B1);
+    assertThat(shards.get(1)).containsExactly(A2, B2);
+  }
+
+  @Test public void withoutHistoryShardsAreBalancedByCount() {
+    List<List<DeviceTest>> shards = ShardBalancer.balance(Arrays.asList(A1, A2, A3, B1, B2),
+        Collections.<DeviceTest, Long>emptyMap(), 2);
+    assertThat(shards.get(0)).hasSize(3);
+    assertThat(shards.get(1)).hasSize(2);
+  }
+
+  @Test public void moreShardsThanTests() {
+    List<List<DeviceTest>> shards =
+        ShardBalancer.balance(Arrays.asList(A1), Collections.<DeviceTest, Long>emptyMap(), 3);
+    assertThat(shards.get(0)).containsExactly(A1);
+    assertThat(shards.get(1)).isEmpty();
+    assertThat(shards.get(2)).isEmpty();
+  }
+
+  @Test public void durationsAreAveragedAcrossResults() throws Exception {
+    File resultJson = File.createTempFile("result", ".json");
+    resultJson.deleteOnExit();
+    SpoonSummary summary = new SpoonSummary.Builder() //
+        .setTitle("test") //
+        .start() //
+        .addResult("123", new DeviceResult.Builder() //
+            .startTests() //
+            .addTestResultBuilder(A1, new DeviceTestResult.Builder() //
+                .startTest() //
+                .endTest()) //
+            .build()) //
+        .end() //
+        .build();
+    FileWriter writer = new FileWriter(resultJson);
+    SpoonUtils.GSON.toJson(summary, writer);
+    writer.close();
+
+    Map<DeviceTest, Long> durations = ShardBalancer.readDurations(SpoonUtils.GSON,
+        Arrays.asList(resultJson, new File("does-not-exist.json")));
+    assertThat(durations).hasSize(1);
+    assertThat(durations.get(A1)).isEqualTo(0L);
+  }
+
+  @Test public void corruptResultsAreIgnored() throws Exception {
+    File resultJson = File.createTempFile("result", ".json");
+    resultJson.deleteOnExit();
+    FileWriter writer = new FileWriter(resultJson);
+    writer.write("{\"results\": [");
+    writer.close();
+
+    assertThat(ShardBalancer.readDurations(SpoonUtils.GSON, Arrays.asList(resultJson))).isEmpty();
+  }
+
+}
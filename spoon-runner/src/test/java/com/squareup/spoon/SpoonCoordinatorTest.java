@@ -0,0 +1,136 @@
+package com.squareup.spoon;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class SpoonCoordinatorTest {
+  private static final String SECRET = "s3cret";
+
+  /** Pretends to run a shard by producing one screenshot for a test named after the shard. */
+  private static final class FakeBackend implements SpoonWorker.Backend {
+    private final Set<String> devices;
+
+    FakeBackend(String... devices) {
+      this.devices = new LinkedHashSet<String>(Arrays.asList(devices));
+    }
+
+    @Override public Set<String> devices() {
+      return devices;
+    }
+
+    @Override public DeviceResult run(SpoonRunner.CommandLineArgs args, String serial,
+        int numShards, int shardIndex) throws IOException {
+      assertThat(args.apk).exists();
+      File screenshot = new File(args.output, "image/" + serial + "/1_shot.png");
+      FileUtils.writeStringToFile(screenshot, serial);
+      String method = "shard" + shardIndex + "of" + numShards;
+      DeviceTest test = new DeviceTest("com.example.Shard", method);
+      return new DeviceResult.Builder() //
+          .startTests() //
+          .addTestResultBuilder(test, new DeviceTestResult.Builder() //
+              .startTest() //
+              .addScreenshot(screenshot) //
+              .endTest()) //
+          .endTests() //
+          .build();
+    }
+  }
+
+  @Test public void workersShardAndStreamResultsBack() throws Exception {
+    File root = Files.createTempDir();
+    try {
+      File apk = new File(root, "app.apk");
+      File testApk = new File(root, "app-test.apk");
+      FileUtils.writeStringToFile(apk, "app");
+      FileUtils.writeStringToFile(testApk, "test");
+      File output = new File(root, "output");
+
+      ServerSocket server = new ServerSocket(0);
+      final int port = server.getLocalPort();
+      List<Thread> workers = new ArrayList<Thread>();
+      workers.add(startWorker(port, new File(root, "a"), "a", SECRET,
+          new FakeBackend("emulator-5554")));
+      workers.add(startWorker(port, new File(root, "b"), "b", SECRET,
+          new FakeBackend("emulator-5554", "emulator-5556")));
+
+      SpoonSummary summary = new SpoonCoordinator(server, 2, 10000, apk, testApk, output,
+          "Distributed", new String[0], SECRET, false).run();
+      server.close();
+      for (Thread worker : workers) {
+        worker.join();
+      }
+
+      Map<String, DeviceResult> results = summary.getResults();
+      assertThat(results).hasSize(3);
+      Set<String> tests = new LinkedHashSet<String>();
+      for (DeviceResult result : results.values()) {
+        assertThat(result.getExceptions()).isEmpty();
+        for (Map.Entry<DeviceTest, DeviceTestResult> entry : result.getTestResults().entrySet()) {
+          tests.add(entry.getKey().getMethodName());
+          File screenshot = entry.getValue().getScreenshots().get(0);
+          assertThat(screenshot.getAbsolutePath()).startsWith(output.getAbsolutePath());
+          assertThat(screenshot).exists();
+        }
+      }
+      assertThat(tests).containsOnly("shard0of3", "shard1of3", "shard2of3");
+      assertThat(SpoonRunner.parseOverallSuccess(summary)).isTrue();
+    } finally {
+      FileUtils.deleteDirectory(root);
+    }
+  }
+
+  @Test public void workersWithTheWrongSecretAreIgnored() throws Exception {
+    File root = Files.createTempDir();
+    try {
+      File apk = new File(root, "app.apk");
+      File testApk = new File(root, "app-test.apk");
+      FileUtils.writeStringToFile(apk, "app");
+      FileUtils.writeStringToFile(testApk, "test");
+
+      ServerSocket server = new ServerSocket(0);
+      Thread worker = startWorker(server.getLocalPort(), new File(root, "a"), "a", "guess",
+          new FakeBackend("emulator-5554"));
+      try {
+        new SpoonCoordinator(server, 1, 1000, apk, testApk, new File(root, "output"),
+            "Distributed", new String[0], SECRET, false).run();
+        fail();
+      } catch (IOException expected) {
+        assertThat(expected.getMessage()).startsWith("No worker connected");
+      } finally {
+        server.close();
+      }
+      worker.join();
+      assertThat(new File(root, "a/" + SpoonCoordinator.FILE_APK)).doesNotExist();
+    } finally {
+      FileUtils.deleteDirectory(root);
+    }
+  }
+
+  private static Thread startWorker(final int port, final File workDir, final String name,
+      final String secret, final SpoonWorker.Backend backend) {
+    Thread thread = new Thread(new Runnable() {
+      @Override public void run() {
+        try {
+          new SpoonWorker("localhost", port, workDir, backend, name, secret).run();
+        } catch (IOException ignored) {
+          // A rejected worker loses its connection.
+        }
+      }
+    });
+    thread.start();
+    return thread;
+  }
+}
@@ -0,0 +1,41 @@
+package com.squareup.spoon;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class SpoonEventLogTest {
+  private static final DeviceTest TEST = new DeviceTest("com.example.FooTest", "bar");
+
+  @Test public void eventsAreAppendedOnePerLine() throws Exception {
+    File file = File.createTempFile("events", ".ndjson");
+    file.deleteOnExit();
+
+    SpoonEventLog first = new SpoonEventLog(file, false, "emulator-5554");
+    first.testStarted(TEST);
+    first.testFailed(TEST, "java.lang.AssertionError\n\tat Foo.bar(Foo.java:1)");
+    first.testEnded(TEST, DeviceTestResult.Status.FAIL);
+    first.close();
+    SpoonEventLog second = new SpoonEventLog(file, false, "emulator-5556");
+    second.testStarted(TEST);
+    second.close();
+
+    List<String> lines = FileUtils.readLines(file, "UTF-8");
+    assertThat(lines).hasSize(4);
+    JsonObject failed = new JsonParser().parse(lines.get(1)).getAsJsonObject();
+    assertThat(failed.get("event").getAsString()).isEqualTo("testFailed");
+    assertThat(failed.get("serial").getAsString()).isEqualTo("emulator-5554");
+    assertThat(failed.get("className").getAsString()).isEqualTo("com.example.FooTest");
+    assertThat(failed.get("methodName").getAsString()).isEqualTo("bar");
+    assertThat(failed.get("trace").getAsString()).contains("Foo.java:1");
+    JsonObject ended = new JsonParser().parse(lines.get(2)).getAsJsonObject();
+    assertThat(ended.get("status").getAsString()).isEqualTo("FAIL");
+    JsonObject started = new JsonParser().parse(lines.get(3)).getAsJsonObject();
+    assertThat(started.get("serial").getAsString()).isEqualTo("emulator-5556");
+  }
+}
@@ -1,7 +1,10 @@
 package com.squareup.spoon;
 
+import java.util.Arrays;
+import java.util.List;
 import org.junit.Test;
 
+import static com.squareup.spoon.DeviceTestResult.Status;
 import static com.squareup.spoon.SpoonRunner.parseOverallSuccess;
 import static org.fest.assertions.api.Assertions.assertThat;
 
@@ -94,4 +97,71 @@ public class SpoonRunnerTest {
         .build(); //
     assertThat(parseOverallSuccess(summary)).isTrue();
   }
+
+  @Test public void retriedTestPassingOnFinalAttemptIsSuccess() {
+    DeviceTest device = new DeviceTest("foo", "bar");
+    DeviceResult firstAttempt = new DeviceResult.Builder() //
+        .startTests() //
+        .addTestResultBuilder(device, new DeviceTestResult.Builder() //
+            .startTest() //
+            .markTestAsFailed("java.fake.Exception: Failed!") //
+            .setRunId("run") //
+            .endTest()) //
+        .endTests() //
+        .build();
+    assertThat(SpoonDeviceRunner.getFailedTests(firstAttempt)).containsExactly(device);
+
+    DeviceResult retry = new DeviceResult.Builder() //
+        .startTests() //
+        .addTestResultBuilder(device, new DeviceTestResult.Builder() //
+            .startTest() //
+            .setRunId("run-retry-1") //
+            .endTest()) //
+        .endTests() //
+        .build();
+    DeviceResult merged = firstAttempt.retry(retry);
+    DeviceTestResult testResult = merged.getTestResults().get(device);
+    assertThat(testResult.getStatus()).containsExactly(Status.FAIL, Status.PASS);
+    assertThat(testResult.getRunIds()).containsExactly("run", "run-retry-1");
+    assertThat(SpoonDeviceRunner.getFailedTests(merged)).isEmpty();
+
+    SpoonSummary summary = new SpoonSummary.Builder() //
+        .setTitle("test") //
+        .start() //
+        .addResult("123", merged) //
+        .end() //
+        .build();
+    assertThat(parseOverallSuccess(summary)).isTrue();
+    assertThat(testResult.getOverallStatus()).isEqualTo(Status.PASS);
+
+    // Aggregating separate runs keeps every failure.
+    DeviceTestResult aggregated = firstAttempt.aggregate(retry).getTestResults().get(device);
+    assertThat(aggregated.getOverallStatus()).isEqualTo(Status.FAIL);
+    SpoonSummary aggregatedSummary = new SpoonSummary.Builder() //
+        .setTitle("test") //
+        .start() //
+        .addResult("123", firstAttempt.aggregate(retry)) //
+        .end() //
+        .build();
+    assertThat(parseOverallSuccess(aggregatedSummary)).isFalse();
+  }
+
+  @Test public void testNamesAreBatchedByLength() {
+    DeviceTest a1 = new DeviceTest("A", "one");
+    DeviceTest a2 = new DeviceTest("A", "two");
+    DeviceTest b1 = new DeviceTest("B", "one");
+    List<DeviceTest> tests = Arrays.asList(a1, a2, b1);
+
+    List<String[]> batches = SpoonDeviceRunner.testNameBatches(tests, 1000);
+    assertThat(batches).hasSize(1);
+    assertThat(batches.get(0)).containsExactly("A#one", "A#two", "B#one");
+
+    batches = SpoonDeviceRunner.testNameBatches(tests, "A#one,A#two".length());
+    assertThat(batches).hasSize(2);
+    assertThat(batches.get(0)).containsExactly("A#one", "A#two");
+    assertThat(batches.get(1)).containsExactly("B#one");
+
+    // A name longer than the limit still runs, on its own.
+    assertThat(SpoonDeviceRunner.testNameBatches(tests, 1)).hasSize(3);
+  }
 }